@@ -138,6 +138,18 @@ public class BSPJob extends BSPJobContext {
         COMBINER_CLASS_ATTR, Combiner.class);
   }
 
+  /**
+   * Sets the combiner that combines messages with the same key while they are
+   * sent, the messages have to implement {@link KeyedMessage}. Set
+   * "hama.messenger.receive.combining" to true to also combine the messages of
+   * all senders as they arrive.
+   */
+  public void setKeyedCombinerClass(
+      Class<? extends KeyedCombiner<? extends Writable>> cls) {
+    ensureState(JobState.DEFINE);
+    conf.setClass(KeyedCombiner.KEYED_COMBINER_CLASS, cls, KeyedCombiner.class);
+  }
+
   public void setJar(String jar) {
     conf.set("bsp.jar", jar);
   }
@@ -48,6 +48,9 @@ import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hama.Constants;
 import org.apache.hama.HamaConfiguration;
+import org.apache.hama.bsp.sync.NettySyncServerImpl;
+import org.apache.hama.bsp.sync.SyncServer;
+import org.apache.hama.bsp.sync.SyncServiceFactory;
 import org.apache.hama.http.HttpServer;
 import org.apache.hama.ipc.GroomProtocol;
 import org.apache.hama.ipc.JobSubmissionProtocol;
@@ -97,6 +100,8 @@ public class BSPMaster implements JobSubmissionProtocol, MasterProtocol,
   String masterIdentifier;
   // private Server interServer;
   private Server masterServer;
+  // the barrier of the tasks, null if they synchronize via ZooKeeper
+  private SyncServer syncServer;
 
   // host and port
   private String host;
@@ -285,6 +290,21 @@ public class BSPMaster implements JobSubmissionProtocol, MasterProtocol,
       startTime = System.currentTimeMillis();
       this.masterServer = RPC.getServer(this, host, port, conf);
 
+      if (NettySyncServerImpl.class.getName().equals(
+          conf.get(SyncServiceFactory.SYNC_SERVER_CLASS))) {
+        // the tasks only know the address if it is configured
+        if (conf.get(NettySyncServerImpl.SERVER_ADDRESS) == null) {
+          throw new IOException(NettySyncServerImpl.SERVER_ADDRESS
+              + " must be set to host the sync server in the BSPMaster!");
+        }
+        try {
+          syncServer = SyncServiceFactory.getSyncServer(conf);
+          syncServer.init(conf);
+        } catch (Exception e) {
+          throw new IOException("Sync server could not be initialized!", e);
+        }
+      }
+
       infoPort = conf.getInt("bsp.http.infoserver.port", 40013);
 
       infoServer = new HttpServer("bspmaster", host, infoPort, true, conf);
@@ -602,6 +622,13 @@ public class BSPMaster implements JobSubmissionProtocol, MasterProtocol,
   public void offerService() throws InterruptedException, IOException {
 
     this.masterServer.start();
+    if (syncServer != null) {
+      try {
+        syncServer.start();
+      } catch (Exception e) {
+        throw new IOException("Sync server could not be started!", e);
+      }
+    }
 
     state.set(State.RUNNING);
 
@@ -928,6 +955,9 @@ public class BSPMaster implements JobSubmissionProtocol, MasterProtocol,
     if(null != this.supervisor.get()) {
       this.supervisor.get().stop();
     }
+    if (syncServer != null) {
+      syncServer.stopServer();
+    }
     this.masterServer.stop();
   }
 
@@ -21,104 +21,249 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.util.ReflectionUtils;
 
 /**
  * BSPMessageBundle stores a group of BSPMessages so that they can be sent in
- * batch rather than individually.
- * 
+ * batch rather than individually. <br/>
+ * Messages are serialized into a single growable buffer as soon as they are
+ * added. The wire format is a dictionary of the message class names, followed
+ * by the runs of consecutive messages of the same class (class index and
+ * count) and the serialized messages themselves. Received messages are only
+ * deserialized while they are iterated.
  */
-public class BSPMessageBundle<M extends Writable> implements Writable {
-  
+public class BSPMessageBundle<M extends Writable> implements Writable,
+    Iterable<M> {
+
   public static final Log LOG = LogFactory.getLog(BSPMessageBundle.class);
 
-  private HashMap<String, LinkedList<M>> messages = new HashMap<String, LinkedList<M>>();
-  private HashMap<String, Class<M>> classCache = new HashMap<String, Class<M>>();
+  // class dictionary
+  private final List<Class<M>> classes = new ArrayList<Class<M>>();
+  private final List<String> classNames = new ArrayList<String>();
+  // bytes the class names take in modified UTF-8, including their length
+  private int classNamesLength = 0;
+
+  // runs of messages of the same class, as class index and message count
+  private int[] runClasses = new int[4];
+  private int[] runCounts = new int[4];
+  private int numRuns = 0;
+  private int numMessages = 0;
+
+  private final DataOutputBuffer buffer = new DataOutputBuffer();
 
   public BSPMessageBundle() {
   }
 
   /**
-   * Add message to this bundle.
+   * Add message to this bundle. The message is serialized right away, so it
+   * can be reused by the caller afterwards.
    * 
    * @param message BSPMessage to add.
    */
   public void addMessage(M message) {
-    String className = message.getClass().getName();
-    if (!messages.containsKey(className)) {
-      // use linked list because we're just iterating over them
-      LinkedList<M> list = new LinkedList<M>();
-      list.add(message);
-      messages.put(className, list);
-    } else {
-      messages.get(className).add(message);
+    @SuppressWarnings("unchecked")
+    int classIndex = getClassIndex((Class<M>) message.getClass());
+    try {
+      message.write(buffer);
+    } catch (IOException e) {
+      // we are writing into memory, this should never happen
+      throw new RuntimeException(e);
     }
+    if (numRuns == 0 || runClasses[numRuns - 1] != classIndex) {
+      if (numRuns == runClasses.length) {
+        runClasses = grow(runClasses);
+        runCounts = grow(runCounts);
+      }
+      runClasses[numRuns] = classIndex;
+      runCounts[numRuns] = 0;
+      numRuns++;
+    }
+    runCounts[numRuns - 1]++;
+    numMessages++;
   }
 
+  /**
+   * @return the messages of this bundle in a new list. Use {@link #iterator()}
+   *         if you don't need random access.
+   */
   public List<M> getMessages() {
     // here we use an arraylist, because we know the size and outside may need
     // random access
-    List<M> mergeList = new ArrayList<M>(messages.size());
-    for (LinkedList<M> c : messages.values()) {
-      mergeList.addAll(c);
+    List<M> mergeList = new ArrayList<M>(numMessages);
+    for (M message : this) {
+      mergeList.add(message);
     }
     return mergeList;
   }
 
-  public void write(DataOutput out) throws IOException {
-    // writes the k/v mapping size
-    out.writeInt(messages.size());
-    if (messages.size() > 0) {
-      for (Entry<String, LinkedList<M>> entry : messages.entrySet()) {
-        out.writeUTF(entry.getKey());
-        LinkedList<M> messageList = entry.getValue();
-        out.writeInt(messageList.size());
-        for (M msg : messageList) {
-          msg.write(out);
+  /**
+   * @return the names of the message classes in this bundle, in the order
+   *         they were first added.
+   */
+  public List<String> getClassNames() {
+    return Collections.unmodifiableList(classNames);
+  }
+
+  /**
+   * @return the number of messages in this bundle.
+   */
+  public int size() {
+    return numMessages;
+  }
+
+  /**
+   * @return the exact number of bytes {@link #write(DataOutput)} will write.
+   */
+  public int getLength() {
+    return 4 + classNamesLength + 4 + numRuns * 8 + 4 + buffer.getLength();
+  }
+
+  /**
+   * Iterates over the messages in the order they were added. Every message is
+   * deserialized into a new instance while iterating.
+   */
+  @Override
+  public Iterator<M> iterator() {
+    return new Iterator<M>() {
+      private final DataInputBuffer in = new DataInputBuffer();
+      private int run = 0;
+      private int readInRun = 0;
+      private int read = 0;
+
+      {
+        in.reset(buffer.getData(), buffer.getLength());
+      }
+
+      @Override
+      public boolean hasNext() {
+        return read < numMessages;
+      }
+
+      @Override
+      public M next() {
+        if (read == numMessages) {
+          throw new NoSuchElementException();
+        }
+        while (readInRun == runCounts[run]) {
+          run++;
+          readInRun = 0;
+        }
+        M message = ReflectionUtils.newInstance(classes.get(runClasses[run]),
+            null);
+        try {
+          message.readFields(in);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
         }
+        readInRun++;
+        read++;
+        return message;
       }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(classNames.size());
+    for (String className : classNames) {
+      out.writeUTF(className);
+    }
+    out.writeInt(numRuns);
+    for (int i = 0; i < numRuns; i++) {
+      out.writeInt(runClasses[i]);
+      out.writeInt(runCounts[i]);
     }
+    out.writeInt(buffer.getLength());
+    out.write(buffer.getData(), 0, buffer.getLength());
   }
 
   @SuppressWarnings("unchecked")
+  @Override
   public void readFields(DataInput in) throws IOException {
-    if (messages == null) {
-      messages = new HashMap<String, LinkedList<M>>();
+    classes.clear();
+    classNames.clear();
+    classNamesLength = 0;
+    int numClasses = in.readInt();
+    for (int i = 0; i < numClasses; i++) {
+      String className = in.readUTF();
+      try {
+        addClass((Class<M>) Class.forName(className));
+      } catch (ClassNotFoundException e) {
+        LOG.error("Class was not found.", e);
+        throw new IOException("Message class " + className + " not found!");
+      }
     }
-    int numMessages = in.readInt();
-    if (numMessages > 0) {
-      for (int entries = 0; entries < numMessages; entries++) {
-        String className = in.readUTF();
-        int size = in.readInt();
-        LinkedList<M> msgList = new LinkedList<M>();
-        messages.put(className, msgList);
-
-        Class<M> clazz = null;
-        if ((clazz = classCache.get(className)) == null) {
-          try {
-            clazz = (Class<M>) Class.forName(className);
-            classCache.put(className, clazz);
-          } catch (ClassNotFoundException e) {
-            LOG.error("Class was not found.",e);
-          }
-        }
+    numRuns = in.readInt();
+    if (runClasses.length < numRuns) {
+      runClasses = new int[numRuns];
+      runCounts = new int[numRuns];
+    }
+    numMessages = 0;
+    for (int i = 0; i < numRuns; i++) {
+      runClasses[i] = in.readInt();
+      runCounts[i] = in.readInt();
+      numMessages += runCounts[i];
+    }
+    buffer.reset();
+    buffer.write(in, in.readInt());
+  }
 
-        for (int i = 0; i < size; i++) {
-          M msg = ReflectionUtils.newInstance(clazz, null);
-          msg.readFields(in);
-          msgList.add(msg);
-        }
+  private int getClassIndex(Class<M> clazz) {
+    // usually there is just a single message class, so this is cheap
+    for (int i = 0; i < classes.size(); i++) {
+      if (classes.get(i) == clazz) {
+        return i;
+      }
+    }
+    addClass(clazz);
+    return classes.size() - 1;
+  }
 
+  private void addClass(Class<M> clazz) {
+    String className = clazz.getName();
+    classes.add(clazz);
+    classNames.add(className);
+    classNamesLength += 2 + getUTFLength(className);
+  }
+
+  /**
+   * @return the number of bytes the string takes in modified UTF-8, see
+   *         {@link DataOutput#writeUTF(String)}.
+   */
+  private static int getUTFLength(String string) {
+    int length = 0;
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        length++;
+      } else if (c > 0x07FF) {
+        length += 3;
+      } else {
+        length += 2;
       }
     }
+    return length;
+  }
+
+  private static int[] grow(int[] array) {
+    int[] newArray = new int[array.length * 2];
+    System.arraycopy(array, 0, newArray, 0, array.length);
+    return newArray;
   }
 
 }
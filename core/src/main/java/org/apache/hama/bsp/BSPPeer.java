@@ -42,6 +42,47 @@ public interface BSPPeer<K1, V1, K2, V2, M extends Writable> extends Constants {
    */
   public void send(String peerName, M msg) throws IOException;
 
+  /**
+   * Send a data with a tag to the peer with the given index, see
+   * {@link #getPeerName(int)}. This is cheaper than sending by name, because
+   * the peer does not have to be looked up.
+   * 
+   * @param peerIndex
+   * @param msg
+   * @throws IOException
+   */
+  public void send(int peerIndex, M msg) throws IOException;
+
+  /**
+   * Send a message to all peers, including this one. The message is serialized
+   * once and the same bytes are shipped to every peer, so this is much cheaper
+   * than sending it to each peer on its own. Broadcasted messages are not
+   * combined.
+   * 
+   * @param msg
+   * @throws IOException
+   */
+  public void broadcast(M msg) throws IOException;
+
+  /**
+   * Contributes a value to a reduction over all peers. The values are combined
+   * during the next sync, either on the barrier itself or along a tree of
+   * messages, afterwards every peer gets the result from
+   * {@link #getReducedValue()}. This is a collective: every peer must
+   * contribute a value in the same superstep. Values that are contributed more
+   * than once in a superstep are combined right away.
+   * 
+   * @param value the value of this peer.
+   * @param combiner combines the values, it must be associative.
+   */
+  public <W extends Writable> void allReduce(W value, Combiner<W> combiner);
+
+  /**
+   * @return the result of the reduction of the last sync, or null if there was
+   *         no reduction.
+   */
+  public <W extends Writable> W getReducedValue();
+
   /**
    * @return A message from the peer's received messages queue (a FIFO).
    * @throws IOException
@@ -65,6 +106,29 @@ public interface BSPPeer<K1, V1, K2, V2, M extends Writable> extends Constants {
    */
   public void sync() throws IOException, SyncException, InterruptedException;
 
+  /**
+   * Starts a {@link #sync()} in the background and returns right away, so the
+   * messages are transferred and the barrier is awaited while the task keeps
+   * computing. Until {@link #awaitSync()} returns, the task must neither send
+   * nor read messages, nor take part in a reduction, these calls throw an
+   * {@link IllegalStateException}. It may write its output or prepare the
+   * next superstep.
+   * 
+   * @throws IOException
+   */
+  public void beginSync() throws IOException;
+
+  /**
+   * Waits until the sync that was started by {@link #beginSync()} has
+   * finished. Afterwards the messages of the next superstep can be read.
+   * 
+   * @throws IOException
+   * @throws SyncException
+   * @throws InterruptedException
+   */
+  public void awaitSync() throws IOException, SyncException,
+      InterruptedException;
+
   /**
    * @return the count of current super-step
    */
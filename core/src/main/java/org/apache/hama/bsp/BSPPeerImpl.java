@@ -19,9 +19,16 @@ package org.apache.hama.bsp;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -56,9 +63,36 @@ public final class BSPPeerImpl<K1, V1, K2, V2, M extends Writable> implements
     SUPERSTEP_SUM, SUPERSTEPS, TASK_INPUT_RECORDS, TASK_OUTPUT_RECORDS,
     IO_BYTES_READ, MESSAGE_BYTES_TRANSFERED, MESSAGE_BYTES_RECEIVED,
     TOTAL_MESSAGES_SENT, TOTAL_MESSAGES_RECEIVED, COMPRESSED_BYTES_SENT,
-    COMPRESSED_BYTES_RECEIVED, TIME_IN_SYNC_MS
+    COMPRESSED_BYTES_RECEIVED, TIME_IN_SYNC_MS, TOTAL_MESSAGES_LOOPBACK,
+    TIME_IN_FLOW_CONTROL_MS
   }
 
+  /**
+   * Number of threads that build, compress and transfer the bundles for the
+   * other peers in the sync. With a single thread this is done in the calling
+   * thread.
+   */
+  public static final String TRANSFER_THREADS = "hama.messenger.transfer.threads";
+  /**
+   * Bytes after which the messages to a peer are split into another bundle, so
+   * large supersteps are not sent as a single huge bundle. Messages are not
+   * split if a combiner is set or the superstep is checkpointed.
+   */
+  public static final String TRANSFER_CHUNK_SIZE = "hama.messenger.transfer.chunk.size";
+  public static final int DEFAULT_TRANSFER_CHUNK_SIZE = 16 * 1024 * 1024;
+  /**
+   * Counter group that holds the milliseconds spent transferring to each peer.
+   */
+  public static final String TRANSFER_TIME_COUNTER_GROUP = "TRANSFER_TIME_MS_PER_PEER";
+  /**
+   * True if the values of {@link #allReduce(Writable, Combiner)} are
+   * piggybacked on the barrier, otherwise they are combined along a tree of
+   * messages after the barrier, which is the default. The barrier saves the
+   * messages, but every task may receive the values of all tasks, so it is
+   * meant for small values.
+   */
+  public static final String BARRIER_REDUCE = "hama.sync.barrier.reduce";
+
   private final Configuration conf;
   private final FileSystem fs;
   private BSPJob bspJob;
@@ -91,6 +125,19 @@ public final class BSPPeerImpl<K1, V1, K2, V2, M extends Writable> implements
 
   private Counters counters;
   private Combiner<M> combiner;
+  // true if messages are transferred while computing
+  private boolean streaming;
+  // null if messages are transferred by the calling thread
+  private ExecutorService transferPool;
+  private int transferChunkSize;
+  // runs the syncs started by beginSync()
+  private ExecutorService syncPool;
+  private Future<Object> pendingSync;
+  // the contribution of this peer to the reduction of the next sync
+  private Writable reduceValue;
+  private Combiner<Writable> reduceCombiner;
+  private Writable reducedValue;
+  private boolean reduceInBarrier;
 
   /**
    * Protected default constructor for LocalBSPRunner.
@@ -169,9 +216,29 @@ public final class BSPPeerImpl<K1, V1, K2, V2, M extends Writable> implements
         TaskStatus.State.RUNNING, "running", peerAddress.getHostName(),
         TaskStatus.Phase.STARTING, counters));
 
+    streaming = conf.getInt(MessageManager.STREAMING_THRESHOLD, 0) > 0
+        || conf.getInt(MessageManager.STREAMING_THRESHOLD_BYTES, 0) > 0;
+    if (streaming
+        && (conf.get("bsp.combiner.class") != null
+            || conf.get(KeyedCombiner.KEYED_COMBINER_CLASS) != null || conf
+              .getBoolean(Constants.CHECKPOINT_ENABLED, false))) {
+      throw new IllegalArgumentException(
+          "Streamed messages can't be combined or checkpointed, disable "
+              + MessageManager.STREAMING_THRESHOLD + " and "
+              + MessageManager.STREAMING_THRESHOLD_BYTES + "!");
+    }
+
     messenger = MessageManagerFactory.getMessageManager(conf);
     messenger.init(taskId, this, conf, peerAddress);
 
+    transferChunkSize = conf.getInt(TRANSFER_CHUNK_SIZE,
+        DEFAULT_TRANSFER_CHUNK_SIZE);
+    reduceInBarrier = conf.getBoolean(BARRIER_REDUCE, false);
+    int transferThreads = conf.getInt(TRANSFER_THREADS, 1);
+    if (transferThreads > 1) {
+      transferPool = Executors.newFixedThreadPool(transferThreads);
+    }
+
     final String combinerName = conf.get("bsp.combiner.class");
     if (combinerName != null) {
       combiner = (Combiner<M>) ReflectionUtils.newInstance(
@@ -237,15 +304,53 @@ public final class BSPPeerImpl<K1, V1, K2, V2, M extends Writable> implements
 
   @Override
   public final M getCurrentMessage() throws IOException {
+    checkNoPendingSync();
     return messenger.getCurrentMessage();
   }
 
   @Override
   public final void send(String peerName, M msg) throws IOException {
+    checkNoPendingSync();
     incrementCounter(PeerCounter.TOTAL_MESSAGES_SENT, 1L);
     messenger.send(peerName, msg);
   }
 
+  @Override
+  public final void send(int peerIndex, M msg) throws IOException {
+    checkNoPendingSync();
+    incrementCounter(PeerCounter.TOTAL_MESSAGES_SENT, 1L);
+    messenger.send(peerIndex, msg);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public final <W extends Writable> void allReduce(W value,
+      Combiner<W> combiner) {
+    checkNoPendingSync();
+    if (reduceValue != null) {
+      List<W> values = new ArrayList<W>(2);
+      values.add((W) reduceValue);
+      values.add(value);
+      value = combiner.combine(values);
+    }
+    reduceValue = value;
+    reduceCombiner = (Combiner<Writable>) combiner;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public final <W extends Writable> W getReducedValue() {
+    checkNoPendingSync();
+    return (W) reducedValue;
+  }
+
+  @Override
+  public final void broadcast(M msg) throws IOException {
+    checkNoPendingSync();
+    incrementCounter(PeerCounter.TOTAL_MESSAGES_SENT, getNumPeers());
+    messenger.broadcast(msg);
+  }
+
   /*
    * returns true if the peer would checkpoint in the next sync.
    */
@@ -274,7 +379,8 @@ public final class BSPPeerImpl<K1, V1, K2, V2, M extends Writable> implements
     return ckptPath;
   }
 
-  final void checkpoint(String checkpointedPath, BSPMessageBundle<M> bundle) {
+  final synchronized void checkpoint(String checkpointedPath,
+      BSPMessageBundle<M> bundle) {
     FSDataOutputStream out = null;
     try {
       out = this.fs.create(new Path(checkpointedPath));
@@ -298,53 +404,199 @@ public final class BSPPeerImpl<K1, V1, K2, V2, M extends Writable> implements
   @Override
   public final void sync() throws IOException, SyncException,
       InterruptedException {
+    if (pendingSync != null) {
+      throw new IllegalStateException("A sync is in progress already!");
+    }
+    doSync();
+  }
+
+  @Override
+  public final void beginSync() throws IOException {
+    if (pendingSync != null) {
+      throw new IllegalStateException("A sync is in progress already!");
+    }
+    if (syncPool == null) {
+      syncPool = Executors.newSingleThreadExecutor();
+    }
+    pendingSync = syncPool.submit(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        doSync();
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public final void awaitSync() throws IOException, SyncException,
+      InterruptedException {
+    if (pendingSync == null) {
+      throw new IllegalStateException("No sync has been started!");
+    }
+    try {
+      pendingSync.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof SyncException) {
+        throw (SyncException) cause;
+      } else if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      pendingSync = null;
+    }
+  }
+
+  /*
+   * the messages and the reduction belong to the sync until it has finished.
+   */
+  private final void checkNoPendingSync() {
+    if (pendingSync != null) {
+      throw new IllegalStateException("A sync is in progress!");
+    }
+  }
+
+  private final void doSync() throws IOException, SyncException,
+      InterruptedException {
     long startBarrier = System.currentTimeMillis();
-    enterBarrier();
-    // normally all messages should been send now, finalizing the send phase
+    reducedValue = null;
+    if (streaming) {
+      syncStreaming();
+    } else {
+      enterBarrier();
+      // normally all messages should been send now, finalizing the send phase
+      messenger.finishSendPhase();
+      transferMessages(isReadyToCheckpoint());
+      leaveBarrier();
+    }
+
+    incrementCounter(PeerCounter.TIME_IN_SYNC_MS,
+        (System.currentTimeMillis() - startBarrier));
+    incrementCounter(PeerCounter.SUPERSTEP_SUM, 1L);
+
+    currentTaskStatus.setCounters(counters);
+
+    umbilical.statusUpdate(taskId, currentTaskStatus);
+    if (!streaming) {
+      // Clear outgoing queues.
+      messenger.clearOutgoingQueues();
+    }
+  }
+
+  /**
+   * In streaming mode peers send messages to each other while they compute,
+   * so every peer has to deliver all of its messages before it enters the
+   * barrier and switch to the next queue before anybody can leave it.
+   * Otherwise a fast peer could stream messages of the next superstep into
+   * the queue of the current one.
+   */
+  private final void syncStreaming() throws IOException, SyncException,
+      InterruptedException {
     messenger.finishSendPhase();
+    transferMessages(false);
+    enterBarrier();
+    messenger.clearOutgoingQueues();
+    leaveBarrier();
+  }
+
+  private final void transferMessages(final boolean shouldCheckPoint)
+      throws IOException, InterruptedException {
     Iterator<Entry<InetSocketAddress, MessageQueue<M>>> it = messenger
         .getMessageIterator();
 
-    boolean shouldCheckPoint = false;
-
-    if ((shouldCheckPoint = isReadyToCheckpoint())) {
+    if (shouldCheckPoint) {
       lastCheckPointStep = getSuperstepCount();
     }
 
+    List<Future<Object>> transfers = new ArrayList<Future<Object>>();
     while (it.hasNext()) {
       Entry<InetSocketAddress, MessageQueue<M>> entry = it.next();
       final InetSocketAddress addr = entry.getKey();
-      final Iterable<M> messages = entry.getValue();
+      final MessageQueue<M> messages = entry.getValue();
 
-      final BSPMessageBundle<M> bundle = combineMessages(messages);
+      // remove this message during runtime to save a bit of memory
+      it.remove();
 
-      if (shouldCheckPoint) {
-        checkpoint(checkpointedPath(), bundle);
+      if (messages.size() == 0) {
+        // everything has been streamed already
+        continue;
       }
 
-      // remove this message during runtime to save a bit of memory
-      it.remove();
+      if (transferPool == null) {
+        transfer(addr, messages, shouldCheckPoint);
+      } else {
+        transfers.add(transferPool.submit(new Callable<Object>() {
+          @Override
+          public Object call() throws Exception {
+            transfer(addr, messages, shouldCheckPoint);
+            return null;
+          }
+        }));
+      }
+    }
 
-      messenger.transfer(addr, bundle);
+    for (Future<Object> future : transfers) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new RuntimeException(e.getCause());
+      }
     }
+    messenger.transferBroadcasts();
+    messenger.finishTransfers();
 
-    leaveBarrier();
+    if (reduceValue != null && !reduceInBarrier) {
+      reducedValue = messenger.allReduce(reduceValue, reduceCombiner);
+      reduceValue = null;
+      reduceCombiner = null;
+    }
+  }
 
-    incrementCounter(PeerCounter.TIME_IN_SYNC_MS,
-        (System.currentTimeMillis() - startBarrier));
-    incrementCounter(PeerCounter.SUPERSTEP_SUM, 1L);
+  /**
+   * Builds the bundles for the given peer and transfers them, the time this
+   * takes is added to the counter of the peer.
+   */
+  private final void transfer(InetSocketAddress addr, Iterable<M> messages,
+      boolean shouldCheckPoint) throws IOException {
+    long start = System.currentTimeMillis();
+    if (combiner != null || shouldCheckPoint) {
+      final BSPMessageBundle<M> bundle = combineMessages(messages);
 
-    currentTaskStatus.setCounters(counters);
+      if (shouldCheckPoint) {
+        checkpoint(checkpointedPath(), bundle);
+      }
 
-    umbilical.statusUpdate(taskId, currentTaskStatus);
-    // Clear outgoing queues.
-    messenger.clearOutgoingQueues();
+      messenger.transfer(addr, bundle);
+    } else {
+      BSPMessageBundle<M> bundle = new BSPMessageBundle<M>();
+      for (M message : messages) {
+        bundle.addMessage(message);
+        if (bundle.getLength() >= transferChunkSize) {
+          messenger.transfer(addr, bundle);
+          bundle = new BSPMessageBundle<M>();
+        }
+      }
+      if (bundle.size() > 0) {
+        messenger.transfer(addr, bundle);
+      }
+    }
+    incrementCounter(TRANSFER_TIME_COUNTER_GROUP, addr.getHostName() + ":"
+        + addr.getPort(), System.currentTimeMillis() - start);
   }
 
   private final BSPMessageBundle<M> combineMessages(Iterable<M> messages) {
     BSPMessageBundle<M> bundle = new BSPMessageBundle<M>();
     if (combiner != null) {
-      bundle.addMessage(combiner.combine(messages));
+      // combiners don't need to be thread-safe
+      synchronized (combiner) {
+        bundle.addMessage(combiner.combine(messages));
+      }
     } else {
       for (M message : messages) {
         bundle.addMessage(message);
@@ -354,8 +606,15 @@ public final class BSPPeerImpl<K1, V1, K2, V2, M extends Writable> implements
   }
 
   protected final void enterBarrier() throws SyncException {
-    syncClient.enterBarrier(taskId.getJobID(), taskId,
-        currentTaskStatus.getSuperstepCount());
+    if (reduceValue != null && reduceInBarrier) {
+      reducedValue = syncClient.enterBarrier(taskId.getJobID(), taskId,
+          currentTaskStatus.getSuperstepCount(), reduceValue, reduceCombiner);
+      reduceValue = null;
+      reduceCombiner = null;
+    } else {
+      syncClient.enterBarrier(taskId.getJobID(), taskId,
+          currentTaskStatus.getSuperstepCount());
+    }
   }
 
   protected final void leaveBarrier() throws SyncException {
@@ -382,6 +641,12 @@ public final class BSPPeerImpl<K1, V1, K2, V2, M extends Writable> implements
       }
     }
     this.clear();
+    if (transferPool != null) {
+      transferPool.shutdownNow();
+    }
+    if (syncPool != null) {
+      syncPool.shutdownNow();
+    }
     try {
       syncClient.close();
     } catch (Exception e) {
@@ -443,6 +708,7 @@ public final class BSPPeerImpl<K1, V1, K2, V2, M extends Writable> implements
    */
   @Override
   public final int getNumCurrentMessages() {
+    checkNoPendingSync();
     return messenger.getNumCurrentMessages();
   }
 
@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Combines messages to the same peer that have the same
+ * {@link KeyedMessage#getCombineKey()} as they are sent, e.G. to keep only the
+ * minimum distance per vertex. Unlike the {@link Combiner}, which folds all
+ * messages to a peer into a single one, this works for reductions per key.
+ * Messages that are no {@link KeyedMessage} are sent as they are. <br/>
+ * Combined messages are kept in a {@link org.apache.hama.bsp.message.CombiningQueue}
+ * on the heap, which replaces the configured queue class, so they never spill
+ * to disk.
+ */
+public abstract class KeyedCombiner<M extends Writable> {
+
+  public static final String KEYED_COMBINER_CLASS = "bsp.keyed.combiner.class";
+
+  /**
+   * Combines two messages with the same key. It is allowed to modify and
+   * return the first message, which is a private copy of the queue, but not
+   * to modify the second one, which still belongs to the caller.
+   * 
+   * @param first the message that was combined so far.
+   * @param second the message that was sent.
+   * @return the combined message
+   */
+  public abstract M combine(M first, M second);
+
+}
@@ -0,0 +1,36 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * A message that can be combined with other messages that have the same key
+ * by a {@link KeyedCombiner}.
+ */
+public interface KeyedMessage<K> extends Writable {
+
+  /**
+   * @return the key this message is combined by, it must implement equals and
+   *         hashCode properly. Messages are copied when they are queued, so
+   *         the key may be a mutable Writable that is reused with the
+   *         message.
+   */
+  public K getCombineKey();
+
+}
@@ -20,9 +20,11 @@ package org.apache.hama.bsp;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
@@ -40,6 +42,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hama.Constants;
 import org.apache.hama.HamaConfiguration;
@@ -49,6 +52,7 @@ import org.apache.hama.bsp.message.MemoryQueue;
 import org.apache.hama.bsp.message.MessageManager;
 import org.apache.hama.bsp.message.MessageManagerFactory;
 import org.apache.hama.bsp.message.MessageQueue;
+import org.apache.hama.bsp.message.ReductionTree;
 import org.apache.hama.bsp.sync.SyncClient;
 import org.apache.hama.bsp.sync.SyncException;
 import org.apache.hama.bsp.sync.SyncServiceFactory;
@@ -124,6 +128,9 @@ public class LocalBSPRunner implements JobSubmissionProtocol {
 
     conf.setClass(MessageManagerFactory.MESSAGE_MANAGER_CLASS,
         LocalMessageManager.class, MessageManager.class);
+    // the local messenger delivers directly into the current queue of a peer
+    conf.setInt(MessageManager.STREAMING_THRESHOLD, 0);
+    conf.setInt(MessageManager.STREAMING_THRESHOLD_BYTES, 0);
     conf.setClass(SyncServiceFactory.SYNC_CLIENT_CLASS, LocalSyncClient.class,
         SyncClient.class);
 
@@ -338,11 +345,23 @@ public class LocalBSPRunner implements JobSubmissionProtocol {
     private final LinkedBlockingDeque<M> localIncomingMessages = new LinkedBlockingDeque<M>();
 
     private BSPPeer<?, ?, ?, ?, M> peer;
+    private ReductionTree reductionTree;
 
     @Override
     public void init(TaskAttemptID attemptId, BSPPeer<?, ?, ?, ?, M> peer,
-        Configuration conf, InetSocketAddress peerAddress) {
+        final Configuration conf, InetSocketAddress peerAddress) {
       this.peer = peer;
+      this.reductionTree = new ReductionTree(conf) {
+        @Override
+        protected void send(int peerIndex, Writable value, boolean reduced)
+            throws IOException {
+          LocalMessageManager<?> receiver = managerMap.get(BSPNetUtils
+              .getAddress(LocalMessageManager.this.peer.getPeerName(peerIndex)));
+          // the peers must not share the instance
+          receiver.reductionTree.receive(WritableUtils.clone(value, conf),
+              reduced);
+        }
+      };
       managerMap.put(peerAddress, this);
     }
 
@@ -362,6 +381,11 @@ public class LocalBSPRunner implements JobSubmissionProtocol {
 
     @Override
     public void send(String peerName, M msg) throws IOException {
+      enqueue(peerName, msg);
+      peer.incrementCounter(BSPPeerImpl.PeerCounter.TOTAL_MESSAGES_SENT, 1L);
+    }
+
+    private void enqueue(String peerName, M msg) {
       InetSocketAddress inetSocketAddress = socketCache.get(peerName);
       if (inetSocketAddress == null) {
         inetSocketAddress = BSPNetUtils.getAddress(peerName);
@@ -372,15 +396,27 @@ public class LocalBSPRunner implements JobSubmissionProtocol {
         msgs = new MemoryQueue<M>();
       }
       msgs.add(msg);
-      peer.incrementCounter(BSPPeerImpl.PeerCounter.TOTAL_MESSAGES_SENT, 1L);
       localOutgoingMessages.put(inetSocketAddress, msgs);
     }
 
+    @Override
+    public void send(int peerIndex, M msg) throws IOException {
+      send(peer.getPeerName(peerIndex), msg);
+    }
+
+    @Override
+    public void broadcast(M msg) throws IOException {
+      // messages are not serialized locally, the peer has counted them
+      for (String peerName : peer.getAllPeerNames()) {
+        enqueue(peerName, msg);
+      }
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public void transfer(InetSocketAddress addr, BSPMessageBundle<M> bundle)
         throws IOException {
-      for (M value : bundle.getMessages()) {
+      for (M value : bundle) {
         managerMap.get(addr).localIncomingMessages.add(value);
         peer.incrementCounter(BSPPeerImpl.PeerCounter.TOTAL_MESSAGES_RECEIVED,
             1L);
@@ -408,6 +444,23 @@ public class LocalBSPRunner implements JobSubmissionProtocol {
 
     }
 
+    @Override
+    public void finishTransfers() throws IOException {
+      // transfers are local method calls
+    }
+
+    @Override
+    public void transferBroadcasts() throws IOException {
+      // broadcasts have been sent to every peer already
+    }
+
+    @Override
+    public <W extends Writable> W allReduce(W value, Combiner<W> combiner)
+        throws IOException {
+      return reductionTree.reduce(value, combiner, peer.getPeerIndex(),
+          peer.getNumPeers());
+    }
+
   }
 
   public static class LocalUmbilical implements BSPPeerProtocol {
@@ -466,16 +519,21 @@ public class LocalBSPRunner implements JobSubmissionProtocol {
   public static class LocalSyncClient implements SyncClient {
     // note that this is static, because we will have multiple peers
     private static CyclicBarrier barrier;
+    // the values of a reduction by task id
+    private static Writable[] values;
+    private Configuration conf;
     private int tasks;
 
     @Override
     public void init(Configuration conf, BSPJobID jobId, TaskAttemptID taskId)
         throws Exception {
+      this.conf = conf;
       tasks = conf.getInt("bsp.peers.num", 1);
 
       synchronized (LocalSyncClient.class) {
         if (barrier == null) {
           barrier = new CyclicBarrier(tasks);
+          values = new Writable[tasks];
           LOG.info("Setting up a new barrier for " + tasks + " tasks!");
         }
       }
@@ -484,8 +542,31 @@ public class LocalBSPRunner implements JobSubmissionProtocol {
     @Override
     public void enterBarrier(BSPJobID jobId, TaskAttemptID taskId,
         long superstep) throws SyncException {
+      // tasks with and without a value must await the same barriers
+      enterBarrier(jobId, taskId, superstep, null, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <W extends Writable> W enterBarrier(BSPJobID jobId,
+        TaskAttemptID taskId, long superstep, W value, Combiner<W> combiner)
+        throws SyncException {
       try {
+        values[taskId.getTaskID().getId()] = value;
+        barrier.await();
+        W reduced = null;
+        if (value != null) {
+          List<W> copies = new ArrayList<W>(tasks);
+          for (Writable v : values) {
+            if (v != null) {
+              copies.add((W) WritableUtils.clone(v, conf));
+            }
+          }
+          reduced = combiner.combine(copies);
+        }
+        // nobody may overwrite the values before everybody has copied them
         barrier.await();
+        return reduced;
       } catch (Exception e) {
         throw new SyncException(e.toString());
       }
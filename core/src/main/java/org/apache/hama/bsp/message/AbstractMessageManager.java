@@ -19,10 +19,18 @@ package org.apache.hama.bsp.message;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,9 +38,14 @@ import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hama.Constants;
+import org.apache.hama.bsp.BSPMessageBundle;
 import org.apache.hama.bsp.BSPPeer;
 import org.apache.hama.bsp.BSPPeerImpl;
+import org.apache.hama.bsp.Combiner;
+import org.apache.hama.bsp.KeyedCombiner;
 import org.apache.hama.bsp.TaskAttemptID;
 import org.apache.hama.util.BSPNetUtils;
 
@@ -61,6 +74,25 @@ public abstract class AbstractMessageManager<M extends Writable> implements
   // the task attempt id
   protected TaskAttemptID attemptId;
 
+  // deliver messages to ourselves without transferring them
+  private boolean loopback;
+  // add incoming messages to a LockFreeQueue
+  private boolean lockFree;
+  // streaming is disabled if both thresholds are zero
+  private int streamingThreshold;
+  private int streamingThresholdBytes;
+  private ExecutorService streamingPool;
+  // streamed messages are serialized right away instead of being queued
+  private final HashMap<InetSocketAddress, BSPMessageBundle<M>> streamingBundles = new HashMap<InetSocketAddress, BSPMessageBundle<M>>();
+  private final List<Future<Object>> streamingTransfers = new LinkedList<Future<Object>>();
+  // broadcasted messages, serialized once for all peers
+  private BSPMessageBundle<M> broadcastBundle = new BSPMessageBundle<M>();
+  private ReductionTree reductionTree;
+  // the outgoing queues and addresses by peer index, built on the first send
+  private InetSocketAddress[] peerAddresses;
+  private MessageQueue<M>[] peerQueues;
+  private int peerIndex;
+
   /*
    * (non-Javadoc)
    * @see org.apache.hama.bsp.message.MessageManager#init(org.apache.hama.bsp.
@@ -74,8 +106,37 @@ public abstract class AbstractMessageManager<M extends Writable> implements
     this.peer = peer;
     this.conf = conf;
     this.peerAddress = peerAddress;
-    localQueue = getQueue();
+    lockFree = conf.getBoolean(RECEIVE_QUEUE_LOCK_FREE, false);
+    if (lockFree && !MemoryQueue.class.equals(getReceiverQueueClass())) {
+      // the lock free queue holds every message on the heap until the switch,
+      // that would defeat a queue that spills or lives off the heap
+      LOG.warn(RECEIVE_QUEUE_LOCK_FREE + " requires a " + MemoryQueue.class
+          + " as receive queue, falling back to a " + SingleLockQueue.class);
+      lockFree = false;
+    }
+    localQueue = getReceiverQueue();
     localQueueForNextIteration = getSynchronizedQueue();
+    reductionTree = new ReductionTree(conf) {
+      @Override
+      protected void send(int peerIndex, Writable value, boolean reduced)
+          throws IOException {
+        sendReductionValue(peerIndex, value, reduced);
+      }
+    };
+    loopback = conf.getBoolean(LOOPBACK, false);
+    if (loopback
+        && (conf.get("bsp.combiner.class") != null || conf.getBoolean(
+            Constants.CHECKPOINT_ENABLED, false))) {
+      LOG.warn(LOOPBACK + " is ignored, because messages to this peer "
+          + "have to be combined or checkpointed like all others!");
+      loopback = false;
+    }
+    streamingThreshold = conf.getInt(STREAMING_THRESHOLD, 0);
+    streamingThresholdBytes = conf.getInt(STREAMING_THRESHOLD_BYTES, 0);
+    if (streamingThreshold > 0 || streamingThresholdBytes > 0) {
+      streamingPool = Executors.newFixedThreadPool(conf.getInt(
+          STREAMING_THREADS, 1));
+    }
   }
 
   /*
@@ -84,6 +145,9 @@ public abstract class AbstractMessageManager<M extends Writable> implements
    */
   @Override
   public void close() {
+    if (streamingPool != null) {
+      streamingPool.shutdownNow();
+    }
     Collection<MessageQueue<M>> values = outgoingQueues.values();
     for (MessageQueue<M> msgQueue : values) {
       msgQueue.close();
@@ -106,12 +170,28 @@ public abstract class AbstractMessageManager<M extends Writable> implements
    */
   @Override
   public void finishSendPhase() throws IOException {
+    // the last bundles of the streamed messages are not full
+    for (Entry<InetSocketAddress, BSPMessageBundle<M>> entry : streamingBundles
+        .entrySet()) {
+      flush(entry.getKey(), entry.getValue());
+    }
+    streamingBundles.clear();
+    waitForStreamingTransfers();
     Collection<MessageQueue<M>> values = outgoingQueues.values();
     for (MessageQueue<M> msgQueue : values) {
       msgQueue.prepareRead();
     }
   }
 
+  /*
+   * (non-Javadoc)
+   * @see org.apache.hama.bsp.message.MessageManager#finishTransfers()
+   */
+  @Override
+  public void finishTransfers() throws IOException {
+    // transfers are synchronous unless the subclass says otherwise
+  }
+
   /*
    * (non-Javadoc)
    * @see org.apache.hama.bsp.message.MessageManager#getCurrentMessage()
@@ -135,7 +215,11 @@ public abstract class AbstractMessageManager<M extends Writable> implements
    * @see org.apache.hama.bsp.message.MessageManager#clearOutgoingQueues()
    */
   @Override
-  public final void clearOutgoingQueues() {
+  public void clearOutgoingQueues() {
+    if (peerQueues != null) {
+      // the queues have been removed from the outgoing queues while transferring
+      Arrays.fill(peerQueues, null);
+    }
     localQueue = localQueueForNextIteration.getMessageQueue();
     localQueue.prepareRead();
     localQueueForNextIteration = getSynchronizedQueue();
@@ -148,21 +232,254 @@ public abstract class AbstractMessageManager<M extends Writable> implements
    */
   @Override
   public void send(String peerName, M msg) throws IOException {
-    InetSocketAddress targetPeerAddress = null;
-    // Get socket for target peer.
-    if (peerSocketCache.containsKey(peerName)) {
-      targetPeerAddress = peerSocketCache.get(peerName);
-    } else {
-      targetPeerAddress = BSPNetUtils.getAddress(peerName);
-      peerSocketCache.put(peerName, targetPeerAddress);
+    InetSocketAddress targetPeerAddress = getAddress(peerName);
+    if (loopback && targetPeerAddress.equals(peerAddress)) {
+      // messages to ourselves don't need to be bundled or transferred
+      addLocally(msg);
+      peer.incrementCounter(BSPPeerImpl.PeerCounter.TOTAL_MESSAGES_LOOPBACK,
+          1L);
+      return;
+    }
+    peer.incrementCounter(BSPPeerImpl.PeerCounter.TOTAL_MESSAGES_SENT, 1L);
+    enqueue(targetPeerAddress, msg);
+  }
+
+  /**
+   * Adds the message to the outgoing queue of the given peer, or to its bundle
+   * if messages are streamed.
+   */
+  private void enqueue(InetSocketAddress addr, M msg) throws IOException {
+    if (streamingPool != null) {
+      stream(addr, msg);
+      return;
     }
-    MessageQueue<M> queue = outgoingQueues.get(targetPeerAddress);
+    MessageQueue<M> queue = outgoingQueues.get(addr);
     if (queue == null) {
       queue = getQueue();
     }
     queue.add(msg);
+    outgoingQueues.put(addr, queue);
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.apache.hama.bsp.message.MessageManager#broadcast(org.apache.hadoop
+   * .io.Writable)
+   */
+  @Override
+  public void broadcast(M msg) throws IOException {
+    // our own copy takes the same way as any other message to ourselves
+    if (loopback) {
+      addLocally(msg);
+    } else {
+      enqueue(peerAddress, msg);
+    }
+    broadcastBundle.addMessage(msg);
+  }
+
+  /**
+   * Adds a copy of the given message to the incoming queue of the next
+   * iteration, the caller may reuse the message like after a transfer.
+   */
+  private void addLocally(M msg) {
+    localQueueForNextIteration.add(WritableUtils.clone(msg, conf));
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.apache.hama.bsp.message.MessageManager#transferBroadcasts()
+   */
+  @Override
+  public final void transferBroadcasts() throws IOException {
+    if (broadcastBundle.size() == 0) {
+      return;
+    }
+    BSPMessageBundle<M> bundle = broadcastBundle;
+    broadcastBundle = new BSPMessageBundle<M>();
+    transferBroadcast(bundle);
+  }
+
+  /**
+   * Transfers the bundle of broadcasted messages to every other peer. The
+   * same bundle is passed to every transfer, so its messages are not
+   * serialized again.
+   */
+  protected void transferBroadcast(BSPMessageBundle<M> bundle)
+      throws IOException {
+    for (String peerName : peer.getAllPeerNames()) {
+      InetSocketAddress addr = getAddress(peerName);
+      if (!addr.equals(peerAddress)) {
+        transfer(addr, bundle);
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.apache.hama.bsp.message.MessageManager#allReduce(org.apache.hadoop
+   * .io.Writable, org.apache.hama.bsp.Combiner)
+   */
+  @Override
+  public <W extends Writable> W allReduce(W value, Combiner<W> combiner)
+      throws IOException {
+    return reductionTree.reduce(value, combiner, peer.getPeerIndex(),
+        peer.getNumPeers());
+  }
+
+  /**
+   * Sends a value of the reduction to the given peer, which must pass it to
+   * {@link #receiveReductionValue(Writable, boolean)}. By default the value is
+   * transferred in a bundle of its own, so the receiving manager has to add
+   * the messages it receives with {@link #addIncoming(Writable)}. Managers
+   * that have a faster way to the other peer should override this.
+   */
+  @SuppressWarnings("unchecked")
+  protected void sendReductionValue(int peerIndex, Writable value,
+      boolean reduced) throws IOException {
+    BSPMessageBundle<M> bundle = new BSPMessageBundle<M>();
+    bundle.addMessage((M) new ReductionMessage(value, reduced));
+    transfer(getAddress(peer.getPeerName(peerIndex)), bundle);
+  }
+
+  /**
+   * Adds a received message to the queue of the next superstep, unless it is
+   * a value of the reduction sent by
+   * {@link #sendReductionValue(int, Writable, boolean)}.
+   */
+  protected final void addIncoming(M message) {
+    if (message instanceof ReductionMessage) {
+      ReductionMessage value = (ReductionMessage) message;
+      receiveReductionValue(value.getValue(), value.isReduced());
+    } else {
+      localQueueForNextIteration.add(message);
+    }
+  }
+
+  /**
+   * Called when a value of the reduction of another peer arrives.
+   */
+  protected final void receiveReductionValue(Writable value, boolean reduced) {
+    reductionTree.receive(value, reduced);
+  }
+
+  /**
+   * @return the address of the given peer, it is resolved only once.
+   */
+  protected final InetSocketAddress getAddress(String peerName) {
+    InetSocketAddress address = peerSocketCache.get(peerName);
+    if (address == null) {
+      address = BSPNetUtils.getAddress(peerName);
+      peerSocketCache.put(peerName, address);
+    }
+    return address;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.apache.hama.bsp.message.MessageManager#send(int,
+   * org.apache.hadoop.io.Writable)
+   */
+  @Override
+  public void send(int peerIndex, M msg) throws IOException {
+    if (peerAddresses == null) {
+      initPeerTable();
+    }
+    if (loopback && peerIndex == this.peerIndex) {
+      addLocally(msg);
+      peer.incrementCounter(BSPPeerImpl.PeerCounter.TOTAL_MESSAGES_LOOPBACK,
+          1L);
+      return;
+    }
     peer.incrementCounter(BSPPeerImpl.PeerCounter.TOTAL_MESSAGES_SENT, 1L);
-    outgoingQueues.put(targetPeerAddress, queue);
+    if (streamingPool != null) {
+      stream(peerAddresses[peerIndex], msg);
+      return;
+    }
+    MessageQueue<M> queue = peerQueues[peerIndex];
+    if (queue == null) {
+      // a message might have been sent to this peer by name already
+      queue = outgoingQueues.get(peerAddresses[peerIndex]);
+      if (queue == null) {
+        queue = getQueue();
+        outgoingQueues.put(peerAddresses[peerIndex], queue);
+      }
+      peerQueues[peerIndex] = queue;
+    }
+    queue.add(msg);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void initPeerTable() {
+    String[] peerNames = peer.getAllPeerNames();
+    peerAddresses = new InetSocketAddress[peerNames.length];
+    for (int i = 0; i < peerNames.length; i++) {
+      peerAddresses[i] = getAddress(peerNames[i]);
+    }
+    peerQueues = new MessageQueue[peerNames.length];
+    peerIndex = peer.getPeerIndex();
+  }
+
+  /**
+   * Adds the message to the bundle of the given peer, which is flushed once it
+   * holds as many messages or bytes as configured.
+   */
+  private void stream(InetSocketAddress addr, M msg) throws IOException {
+    BSPMessageBundle<M> bundle = streamingBundles.get(addr);
+    if (bundle == null) {
+      bundle = new BSPMessageBundle<M>();
+      streamingBundles.put(addr, bundle);
+    }
+    bundle.addMessage(msg);
+    if ((streamingThreshold > 0 && bundle.size() >= streamingThreshold)
+        || (streamingThresholdBytes > 0 && bundle.getLength() >= streamingThresholdBytes)) {
+      streamingBundles.remove(addr);
+      flush(addr, bundle);
+    }
+  }
+
+  /**
+   * Transfers the given bundle in the background.
+   */
+  private void flush(final InetSocketAddress addr,
+      final BSPMessageBundle<M> bundle) throws IOException {
+    // fail fast instead of queueing up bundles behind a broken transfer
+    Iterator<Future<Object>> iterator = streamingTransfers.iterator();
+    while (iterator.hasNext()) {
+      Future<Object> future = iterator.next();
+      if (future.isDone()) {
+        getTransferResult(future);
+        iterator.remove();
+      }
+    }
+    streamingTransfers.add(streamingPool.submit(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        transfer(addr, bundle);
+        return null;
+      }
+    }));
+  }
+
+  private void waitForStreamingTransfers() throws IOException {
+    for (Future<Object> future : streamingTransfers) {
+      getTransferResult(future);
+    }
+    streamingTransfers.clear();
+  }
+
+  private static void getTransferResult(Future<Object> future)
+      throws IOException {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a transfer!");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
   }
 
   /*
@@ -178,12 +495,52 @@ public abstract class AbstractMessageManager<M extends Writable> implements
    * Returns a new queue implementation based on what was configured. If nothing
    * has been configured for "hama.messenger.queue.class" then the
    * {@link MemoryQueue} is used. If you have scalability issues, then better
-   * use {@link DiskQueue}.
+   * use {@link DiskQueue} or the {@link SpillingQueue}, which only goes to disk
+   * once its memory budget is exhausted. <br/>
+   * If a {@link KeyedCombiner} is configured, a {@link CombiningQueue} is used
+   * regardless of the queue class, so messages are combined as they are sent.
+   * It is held in memory, so combining can't be used together with spilling.
    * 
    * @return a <b>new</b> queue implementation.
    */
   protected MessageQueue<M> getQueue() {
-    Class<?> queueClass = conf.getClass(QUEUE_TYPE_CLASS, MemoryQueue.class);
+    if (conf.get(KeyedCombiner.KEYED_COMBINER_CLASS) != null) {
+      return newQueue(CombiningQueue.class);
+    }
+    return newQueue(conf.getClass(QUEUE_TYPE_CLASS, MemoryQueue.class));
+  }
+
+  /**
+   * Returns a new queue implementation for the incoming messages of the next
+   * iteration. If nothing has been configured for
+   * "hama.messenger.receive.queue.class", the queue configured for
+   * "hama.messenger.queue.class" is used. Incoming messages are held during a
+   * whole superstep, so this is a good place for the {@link OffHeapQueue}.
+   * <br/>
+   * If "hama.messenger.receive.combining" is true and a {@link KeyedCombiner}
+   * is configured, a {@link CombiningQueue} is used instead, so messages are
+   * combined in memory as they arrive.
+   * 
+   * @return a <b>new</b> queue implementation.
+   */
+  protected MessageQueue<M> getReceiverQueue() {
+    return newQueue(getReceiverQueueClass());
+  }
+
+  protected final Class<?> getReceiverQueueClass() {
+    if (isCombiningOnReceive()) {
+      return CombiningQueue.class;
+    }
+    return conf.getClass(RECEIVE_QUEUE_TYPE_CLASS,
+        conf.getClass(QUEUE_TYPE_CLASS, MemoryQueue.class));
+  }
+
+  private boolean isCombiningOnReceive() {
+    return conf.getBoolean(RECEIVE_COMBINING, false)
+        && conf.get(KeyedCombiner.KEYED_COMBINER_CLASS) != null;
+  }
+
+  private MessageQueue<M> newQueue(Class<?> queueClass) {
     LOG.debug("Creating new " + queueClass);
     @SuppressWarnings("unchecked")
     MessageQueue<M> newInstance = (MessageQueue<M>) ReflectionUtils
@@ -192,8 +549,17 @@ public abstract class AbstractMessageManager<M extends Writable> implements
     return newInstance;
   }
 
+  /**
+   * Returns the queue the RPC handlers add the incoming messages to. If
+   * "hama.messenger.receive.queue.lockfree" is true and the receiver queue is
+   * a {@link MemoryQueue}, this is a {@link LockFreeQueue}, which is merged
+   * into the receiver queue when the queues are switched.
+   */
   protected SynchronizedQueue<M> getSynchronizedQueue() {
-    return SingleLockQueue.synchronize(getQueue());
+    if (lockFree) {
+      return LockFreeQueue.synchronize(getReceiverQueue());
+    }
+    return SingleLockQueue.synchronize(getReceiverQueue());
   }
 
   @Override
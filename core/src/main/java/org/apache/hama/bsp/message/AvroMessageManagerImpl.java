@@ -18,14 +18,11 @@
 package org.apache.hama.bsp.message;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.Iterator;
 
 import org.apache.avro.AvroRemoteException;
 import org.apache.avro.ipc.NettyServer;
@@ -33,6 +30,7 @@ import org.apache.avro.ipc.NettyTransceiver;
 import org.apache.avro.ipc.specific.SpecificRequestor;
 import org.apache.avro.ipc.specific.SpecificResponder;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
 import org.apache.hama.bsp.BSPMessageBundle;
 import org.apache.hama.bsp.BSPPeer;
@@ -63,11 +61,9 @@ public final class AvroMessageManagerImpl<M extends Writable> extends
 
   public void put(BSPMessageBundle<M> messages) {
     peer.incrementCounter(BSPPeerImpl.PeerCounter.TOTAL_MESSAGES_RECEIVED,
-        messages.getMessages().size());
-    Iterator<M> iterator = messages.getMessages().iterator();
-    while (iterator.hasNext()) {
-      this.localQueueForNextIteration.add(iterator.next());
-      iterator.remove();
+        messages.size());
+    for (M message : messages) {
+      addIncoming(message);
     }
   }
 
@@ -77,12 +73,15 @@ public final class AvroMessageManagerImpl<M extends Writable> extends
       throws IOException {
     AvroBSPMessageBundle<M> msg = new AvroBSPMessageBundle<M>();
     msg.setData(serializeMessage(bundle));
-    Sender<M> sender = peers.get(addr);
-
-    if (sender == null) {
-      NettyTransceiver client = new NettyTransceiver(addr);
-      sender = SpecificRequestor.getClient(Sender.class, client);
-      peers.put(addr, sender);
+    Sender<M> sender = null;
+    // transfers may run concurrently when messages are streamed
+    synchronized (peers) {
+      sender = peers.get(addr);
+      if (sender == null) {
+        NettyTransceiver client = new NettyTransceiver(addr);
+        sender = SpecificRequestor.getClient(Sender.class, client);
+        peers.put(addr, sender);
+      }
     }
 
     sender.transfer(msg);
@@ -123,11 +122,11 @@ public final class AvroMessageManagerImpl<M extends Writable> extends
   private final ByteBuffer serializeMessage(BSPMessageBundle<M> msg)
       throws IOException {
     if (compressor == null) {
-      ByteArrayOutputStream outArray = new ByteArrayOutputStream();
-      DataOutputStream out = new DataOutputStream(outArray);
+      // the length is known, so the buffer is exactly the size of the bundle
+      // and doesn't need to be copied
+      DataOutputBuffer out = new DataOutputBuffer(msg.getLength());
       msg.write(out);
-      out.close();
-      byte[] byteArray = outArray.toByteArray();
+      byte[] byteArray = out.getData();
       peer.incrementCounter(BSPPeerImpl.PeerCounter.MESSAGE_BYTES_TRANSFERED,
           byteArray.length);
       return ByteBuffer.wrap(byteArray);
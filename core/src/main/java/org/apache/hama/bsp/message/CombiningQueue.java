@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hama.bsp.KeyedCombiner;
+import org.apache.hama.bsp.KeyedMessage;
+import org.apache.hama.bsp.TaskAttemptID;
+
+/**
+ * A memory queue that combines every added {@link KeyedMessage} with the
+ * message of the same key that is already queued, using the
+ * {@link KeyedCombiner} configured for "bsp.keyed.combiner.class". Messages
+ * are returned in the order their key was first added, messages that are no
+ * {@link KeyedMessage} are returned after them. <br/>
+ * The queue combines into copies of the added messages, so the caller may
+ * still use or reuse a message after adding it. It always lives on the heap
+ * and never spills, whatever queue class is configured.
+ */
+public final class CombiningQueue<M extends Writable> implements
+    MessageQueue<M> {
+
+  private final LinkedHashMap<Object, M> combined = new LinkedHashMap<Object, M>();
+  private final LinkedList<M> uncombined = new LinkedList<M>();
+  private KeyedCombiner<M> combiner;
+  private Configuration conf;
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void init(Configuration conf, TaskAttemptID id) {
+    this.conf = conf;
+    Class<?> combinerClass = conf.getClass(
+        KeyedCombiner.KEYED_COMBINER_CLASS, null);
+    if (combinerClass == null) {
+      throw new IllegalArgumentException("No keyed combiner configured for "
+          + KeyedCombiner.KEYED_COMBINER_CLASS);
+    }
+    this.combiner = (KeyedCombiner<M>) ReflectionUtils.newInstance(
+        combinerClass, conf);
+  }
+
+  @Override
+  public void close() {
+    clear();
+  }
+
+  @Override
+  public void prepareRead() {
+
+  }
+
+  @Override
+  public void prepareWrite() {
+
+  }
+
+  @Override
+  public void addAll(Collection<M> col) {
+    for (M item : col) {
+      add(item);
+    }
+  }
+
+  @Override
+  public void addAll(MessageQueue<M> otherqueue) {
+    M poll = null;
+    while ((poll = otherqueue.poll()) != null) {
+      add(poll);
+    }
+  }
+
+  @Override
+  public void add(M item) {
+    if (item instanceof KeyedMessage) {
+      Object key = ((KeyedMessage<?>) item).getCombineKey();
+      M current = combined.get(key);
+      if (current == null) {
+        // the caller may reuse its message and so its key
+        M copy = WritableUtils.clone(item, conf);
+        combined.put(((KeyedMessage<?>) copy).getCombineKey(), copy);
+      } else {
+        M result = combiner.combine(current, item);
+        if (result == item) {
+          result = WritableUtils.clone(item, conf);
+        }
+        // replacing the value keeps the position of the key
+        combined.put(key, result);
+      }
+    } else {
+      uncombined.add(item);
+    }
+  }
+
+  @Override
+  public void clear() {
+    combined.clear();
+    uncombined.clear();
+  }
+
+  @Override
+  public M poll() {
+    if (!combined.isEmpty()) {
+      Iterator<M> iterator = combined.values().iterator();
+      M item = iterator.next();
+      iterator.remove();
+      return item;
+    }
+    return uncombined.poll();
+  }
+
+  @Override
+  public int size() {
+    return combined.size() + uncombined.size();
+  }
+
+  @Override
+  public Iterator<M> iterator() {
+    return new Iterator<M>() {
+      private Iterator<M> current = combined.values().iterator();
+      private Iterator<M> lastReturned = current;
+      private boolean atUncombined = false;
+
+      @Override
+      public boolean hasNext() {
+        if (!current.hasNext() && !atUncombined) {
+          current = uncombined.iterator();
+          atUncombined = true;
+        }
+        return current.hasNext();
+      }
+
+      @Override
+      public M next() {
+        hasNext();
+        lastReturned = current;
+        return current.next();
+      }
+
+      @Override
+      public void remove() {
+        lastReturned.remove();
+      }
+    };
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+}
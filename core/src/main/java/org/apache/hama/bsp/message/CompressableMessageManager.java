@@ -21,6 +21,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Writable;
 import org.apache.hama.bsp.message.compress.BSPMessageCompressor;
 import org.apache.hama.bsp.message.compress.BSPMessageCompressorFactory;
+import org.apache.hama.bsp.message.compress.CompressionPolicy;
 
 /**
  * Abstract message layer that can be used to compress messages.
@@ -30,9 +31,13 @@ import org.apache.hama.bsp.message.compress.BSPMessageCompressorFactory;
 public abstract class CompressableMessageManager<M extends Writable> extends AbstractMessageManager<M> {
 
   protected BSPMessageCompressor<M> compressor;
+  // decides which bundles are compressed, null if compression is disabled
+  protected CompressionPolicy<M> compressionPolicy;
 
   protected void initCompression(Configuration conf) {
-    compressor = new BSPMessageCompressorFactory<M>().getCompressor(conf);
+    BSPMessageCompressorFactory<M> factory = new BSPMessageCompressorFactory<M>();
+    compressor = factory.getCompressor(conf);
+    compressionPolicy = factory.getCompressionPolicy(conf, compressor);
   }
 
 }
@@ -17,157 +17,108 @@
  */
 package org.apache.hama.bsp.message;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FSDataOutputStream;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hama.bsp.TaskAttemptID;
 
 /**
- * A disk based queue that is backed by a raw file on local disk. <br/>
+ * A disk based queue that is backed by raw segment files on local disk. <br/>
  * Structure is as follows: <br/>
  * If "bsp.disk.queue.dir" is not defined, "hama.tmp.dir" will be used instead. <br/>
  * ${hama.tmp.dir}/diskqueue/job_id/task_attempt_id/ <br/>
  * An ongoing sequencenumber will be appended to prevent inner collisions,
  * however the job_id dir will never be deleted. So you need a cronjob to do the
  * cleanup for you. <br/>
- * It is recommended to use the file:// scheme in front of the property, because
- * writes on DFS are expensive, however your local disk may not have enough
- * space for your message, so you can easily switch per job via your
- * configuration. <br/>
+ * Only the path of the configured directory is used, the segments are always
+ * written to the local file system. <br/>
+ * Every segment starts with the class name of its messages, followed by the
+ * length prefixed raw bytes of every message. A new segment is started once
+ * "bsp.disk.queue.segment.size" bytes have been written or when a message of
+ * another class is added. Segments are read with a read-ahead buffer of
+ * "bsp.disk.queue.buffer.size" bytes and deleted as soon as they are consumed. <br/>
  * <b>It is experimental to use.</b>
  */
 public final class DiskQueue<M extends Writable> implements MessageQueue<M> {
 
   public static final String DISK_QUEUE_PATH_KEY = "bsp.disk.queue.dir";
+  public static final String BUFFER_SIZE_KEY = "bsp.disk.queue.buffer.size";
+  public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+  public static final String SEGMENT_SIZE_KEY = "bsp.disk.queue.segment.size";
+  public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024L * 1024L;
 
-  private static final int MAX_RETRIES = 4;
   private static final Log LOG = LogFactory.getLog(DiskQueue.class);
 
-  private static volatile int ONGOING_SEQUENCE_NUMBER = 0;
+  private static final AtomicInteger ONGOING_SEQUENCE_NUMBER = new AtomicInteger();
 
   private int size = 0;
   // injected via reflection
   private Configuration conf;
-  private FileSystem fs;
 
-  private FSDataOutputStream writer;
-  private FSDataInputStream reader;
+  private File queueDir;
+  private int queueId;
+  private int segmentCounter = 0;
+  private int bufferSize = DEFAULT_BUFFER_SIZE;
+  private long segmentSize = DEFAULT_SEGMENT_SIZE;
 
-  private Path queuePath;
-  private TaskAttemptID id;
-  private final ObjectWritable writable = new ObjectWritable();
+  // segments in the order they were written, the last one may still be open
+  private final LinkedList<Segment> segments = new LinkedList<Segment>();
+  private Segment writeSegment;
+  private DataOutputStream writer;
+  private DataInputStream reader;
+
+  private final DataOutputBuffer serializationBuffer = new DataOutputBuffer();
+  private final DataInputBuffer deserializationBuffer = new DataInputBuffer();
+  private byte[] readBytes = new byte[128];
 
   @Override
   public void init(Configuration conf, TaskAttemptID id) {
-    this.id = id;
-    writable.setConf(conf);
-    try {
-      fs = FileSystem.get(conf);
-      String configuredQueueDir = conf.get(DISK_QUEUE_PATH_KEY);
-      Path queueDir = null;
-      queueDir = getQueueDir(conf, id, configuredQueueDir);
-      fs.mkdirs(queueDir);
-      queuePath = new Path(queueDir, (ONGOING_SEQUENCE_NUMBER++)
-          + "_messages.seq");
-      prepareWrite();
-    } catch (IOException e) {
-      // we can't recover if something bad happens here..
-      throw new RuntimeException(e);
-    }
+    this.conf = conf;
+    this.bufferSize = conf.getInt(BUFFER_SIZE_KEY, DEFAULT_BUFFER_SIZE);
+    this.segmentSize = conf.getLong(SEGMENT_SIZE_KEY, DEFAULT_SEGMENT_SIZE);
+    this.queueId = ONGOING_SEQUENCE_NUMBER.getAndIncrement();
+    this.queueDir = new File(getQueueDir(conf, id,
+        conf.get(DISK_QUEUE_PATH_KEY)).toUri().getPath());
   }
 
   @Override
   public void close() {
-    closeInternal(true);
-    try {
-      fs.delete(queuePath.getParent(), true);
-    } catch (IOException e) {
-      LOG.error(e);
-    }
+    clear();
+    // only succeeds if no other queue of this task has files left
+    queueDir.delete();
   }
 
   /**
-   * Close our writer internal, basically should be called after the computation
-   * phase ended.
+   * Makes sure that everything that was added can be read, so the segment that
+   * is currently written is closed.
    */
-  private void closeInternal(boolean delete) {
-    try {
-      if (writer != null) {
-        writer.flush();
-        writer.close();
-        writer = null;
-      }
-    } catch (IOException e) {
-      LOG.error(e);
-    } finally {
-      if (fs != null && delete) {
-        try {
-          fs.delete(queuePath, true);
-        } catch (IOException e) {
-          LOG.error(e);
-        }
-      }
-      if (writer != null) {
-        try {
-          writer.flush();
-          writer.close();
-          writer = null;
-        } catch (IOException e) {
-          LOG.error(e);
-        }
-      }
-    }
-    try {
-      if (reader != null) {
-        reader.close();
-        reader = null;
-      }
-    } catch (IOException e) {
-      LOG.error(e);
-    } finally {
-      if (reader != null) {
-        try {
-          reader.close();
-          reader = null;
-        } catch (IOException e) {
-          LOG.error(e);
-        }
-      }
-    }
-  }
-
   @Override
   public void prepareRead() {
-    // make sure we've closed
-    closeInternal(false);
-    try {
-      reader = fs.open(queuePath);
-    } catch (IOException e) {
-      // can't recover from that
-      LOG.error(e);
-      throw new RuntimeException(e);
-    }
+    closeWriter();
   }
 
   @Override
   public void prepareWrite() {
-    try {
-      writer = fs.create(queuePath);
-    } catch (IOException e) {
-      // can't recover from that
-      LOG.error(e);
-      throw new RuntimeException(e);
-    }
+    // the writer is opened lazily with the first message
   }
 
   @Override
@@ -187,45 +138,73 @@ public final class DiskQueue<M extends Writable> implements MessageQueue<M> {
 
   @Override
   public final void add(M item) {
-    size++;
     try {
-      new ObjectWritable(item).write(writer);
+      serializationBuffer.reset();
+      item.write(serializationBuffer);
+      int length = serializationBuffer.getLength();
+      DataOutputStream out = getWriter(item.getClass());
+      out.writeInt(length);
+      out.write(serializationBuffer.getData(), 0, length);
+      writeSegment.count++;
+      writeSegment.bytes += 4 + length;
     } catch (IOException e) {
-      LOG.error(e);
+      throw new RuntimeException("Message couldn't be written to " + queueDir,
+          e);
     }
+    size++;
   }
 
   @Override
   public final void clear() {
-    closeInternal(true);
+    closeWriter();
+    closeReader();
+    for (Segment segment : segments) {
+      segment.delete();
+    }
+    segments.clear();
     size = 0;
-    init(conf, id);
   }
 
-  @SuppressWarnings("unchecked")
   @Override
   public final M poll() {
     if (size == 0) {
       return null;
     }
-    size--;
-    int tries = 1;
-    while (tries <= MAX_RETRIES) {
-      try {
-        writable.readFields(reader);
-        if (size > 0) {
-          return (M) writable.get();
-        } else {
-          closeInternal(true);
-          return (M) writable.get();
+    Segment segment = segments.getFirst();
+    int length;
+    try {
+      if (reader == null) {
+        if (segment == writeSegment) {
+          closeWriter();
         }
-      } catch (IOException e) {
-        LOG.error("Retrying for the " + tries + "th time!", e);
+        reader = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(segment.file), bufferSize));
+        // the class is known already, skip the header
+        reader.readUTF();
+      }
+      length = reader.readInt();
+      if (readBytes.length < length) {
+        readBytes = new byte[Math.max(length, readBytes.length * 2)];
       }
-      tries++;
+      reader.readFully(readBytes, 0, length);
+    } catch (IOException e) {
+      throw new RuntimeException("Message couldn't be read from "
+          + segment.file, e);
+    }
+    deserializationBuffer.reset(readBytes, length);
+    M item = ReflectionUtils.newInstance(segment.messageClass, conf);
+    try {
+      item.readFields(deserializationBuffer);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
     }
-    throw new RuntimeException("Message couldn't be read for " + tries
-        + " times! Giving up!");
+    size--;
+    if (++segment.read == segment.count) {
+      closeReader();
+      segment.delete();
+      segments.removeFirst();
+    }
+    return item;
   }
 
   @Override
@@ -248,22 +227,64 @@ public final class DiskQueue<M extends Writable> implements MessageQueue<M> {
     return conf;
   }
 
-  private class DiskIterator implements Iterator<M> {
+  /**
+   * Returns the writer for a message of the given class, starts a new segment
+   * if the class differs or the current segment is full.
+   */
+  @SuppressWarnings("unchecked")
+  private DataOutputStream getWriter(Class<?> messageClass) throws IOException {
+    if (writer != null && writeSegment.messageClass == messageClass
+        && writeSegment.bytes < segmentSize) {
+      return writer;
+    }
+    closeWriter();
+    if (!queueDir.exists() && !queueDir.mkdirs()) {
+      throw new IOException("Could not create queue directory " + queueDir);
+    }
+    writeSegment = new Segment(new File(queueDir, queueId + "_messages_"
+        + (segmentCounter++) + ".bin"), (Class<M>) messageClass);
+    writer = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(writeSegment.file), bufferSize));
+    writer.writeUTF(messageClass.getName());
+    segments.add(writeSegment);
+    return writer;
+  }
 
-    public DiskIterator() {
-      prepareRead();
+  private void closeWriter() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        LOG.error(e);
+      }
+      writer = null;
+      writeSegment = null;
     }
+  }
+
+  private void closeReader() {
+    if (reader != null) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        LOG.error(e);
+      }
+      reader = null;
+    }
+  }
+
+  private class DiskIterator implements Iterator<M> {
 
     @Override
     public boolean hasNext() {
-      if (size == 0) {
-        closeInternal(false);
-      }
       return size != 0;
     }
 
     @Override
     public M next() {
+      if (size == 0) {
+        throw new NoSuchElementException();
+      }
       return poll();
     }
 
@@ -274,6 +295,30 @@ public final class DiskQueue<M extends Writable> implements MessageQueue<M> {
 
   }
 
+  /**
+   * A segment file, all messages in it are of the same class.
+   */
+  private final class Segment {
+
+    private final File file;
+    private final Class<M> messageClass;
+    private int count = 0;
+    private int read = 0;
+    private long bytes = 0L;
+
+    Segment(File file, Class<M> messageClass) {
+      this.file = file;
+      this.messageClass = messageClass;
+    }
+
+    void delete() {
+      if (!file.delete()) {
+        LOG.warn("Segment " + file + " couldn't be deleted");
+      }
+    }
+
+  }
+
   /**
    * Creates a path for a queue
    */
@@ -17,6 +17,8 @@
  */
 package org.apache.hama.bsp.message;
 
+import java.io.IOException;
+
 import org.apache.hadoop.io.Writable;
 import org.apache.hama.bsp.BSPMessageBundle;
 import org.apache.hama.bsp.message.compress.BSPCompressedBundle;
@@ -53,4 +55,73 @@ public interface HadoopMessageManager<M extends Writable> extends
    */
   public void put(BSPCompressedBundle compMsgBundle);
 
+  /**
+   * Puts a bundle that has reserved room in the receive budget. The
+   * reservation is given back and, if there is room, the same number of bytes
+   * is reserved again for the next bundle of the sender, so a sender that
+   * keeps up with the receiver doesn't have to call
+   * {@link #reserve(int)} again.
+   * 
+   * @param messages the bundle.
+   * @param reserved the bytes the sender has reserved for this bundle.
+   * @return the bytes reserved for the next bundle of the sender, 0 if there
+   *         was no room.
+   */
+  public long put(BSPMessageBundle<M> messages, long reserved);
+
+  /**
+   * Puts a compressed bundle like {@link #put(BSPMessageBundle, long)}.
+   */
+  public long put(BSPCompressedBundle compMsgBundle, long reserved);
+
+  /**
+   * Reserves room for a bundle of the given size in the receive budget of this
+   * peer. Senders must call this before they put a bundle if
+   * "hama.messenger.receive.budget" is set and they have no reservation left
+   * from their last put.
+   * 
+   * @param bytes the uncompressed length of the bundle.
+   * @return true if the bundle may be put now, false if the sender should try
+   *         again later. The call waits until there is room, unless the
+   *         handlers of this peer are needed for the puts.
+   */
+  public boolean reserve(int bytes);
+
+  /**
+   * Gives back room that a sender has reserved, but will not use.
+   * 
+   * @param bytes the reserved bytes.
+   */
+  public void release(long bytes);
+
+  /**
+   * Puts a bundle of broadcasted messages for the next iteration and relays it
+   * to the children of this peer in the broadcast tree of the given root. This
+   * returns at once, {@link #relayed(int, boolean)} is called on the parent
+   * once the whole subtree has received the bundle.
+   * 
+   * @param messages the broadcasted messages.
+   * @param root the index of the peer that broadcasted the messages.
+   */
+  public void relay(BSPMessageBundle<M> messages, int root);
+
+  /**
+   * Tells this peer that the subtree of one of its children in the broadcast
+   * tree of the given root has received the bundle.
+   * 
+   * @param root the index of the peer that broadcasted the messages.
+   * @param failed true if the bundle could not be relayed to every peer of the
+   *          subtree.
+   */
+  public void relayed(int root, boolean failed);
+
+  /**
+   * Puts a value of the reduction that is running in this sync.
+   * 
+   * @param value the value.
+   * @param reduced true if this is the final value sent by the parent, false if
+   *          it is the partial value of a child.
+   */
+  public void reduce(Writable value, boolean reduced);
+
 }
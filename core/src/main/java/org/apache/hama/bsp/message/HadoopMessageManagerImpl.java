@@ -19,7 +19,18 @@ package org.apache.hama.bsp.message;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,35 +44,127 @@ import org.apache.hama.bsp.BSPPeerImpl;
 import org.apache.hama.bsp.TaskAttemptID;
 import org.apache.hama.bsp.message.compress.BSPCompressedBundle;
 import org.apache.hama.ipc.HamaRPCProtocolVersion;
-import org.apache.hama.util.CompressionUtil;
+import org.apache.hama.util.BSPNetUtils;
 
 /**
- * Implementation of the {@link HadoopMessageManager}.
- * 
+ * Implementation of the {@link HadoopMessageManager}. <br/>
+ * Bundles are put asynchronously: up to "hama.messenger.rpc.window" bundles per
+ * peer are in flight at the same time, {@link #transfer(InetSocketAddress,
+ * BSPMessageBundle)} blocks if the window of a peer is full and
+ * {@link #finishTransfers()} waits until every put was acknowledged. This keeps
+ * a slow peer from stalling the transfers to the others. A window of 0 makes
+ * every put synchronous. <br/>
+ * With the default window of 1 the bundles to a peer arrive in the order they
+ * were transferred. Larger windows pipeline the chunks of large transfers, but
+ * concurrent puts to the same peer may overtake each other, so the messages
+ * of a peer can arrive out of order.
  */
-public final class HadoopMessageManagerImpl<M extends Writable> extends
+public class HadoopMessageManagerImpl<M extends Writable> extends
     CompressableMessageManager<M> implements HadoopMessageManager<M> {
 
   private static final Log LOG = LogFactory
       .getLog(HadoopMessageManagerImpl.class);
 
+  public static final String RPC_WINDOW = "hama.messenger.rpc.window";
+  public static final int DEFAULT_RPC_WINDOW = 1;
+  public static final String RPC_THREADS = "hama.messenger.rpc.threads";
+  public static final String RPC_HANDLERS = "hama.messenger.rpc.handlers";
+  /**
+   * Bytes of incoming bundles a peer accepts at the same time. Senders wait
+   * until the receiver has room for their bundle, 0 disables flow control. The
+   * room is given back once the bundle has been added to the receive queue,
+   * so the receive queue must spill to disk or keep its messages off the heap
+   * ({@link DiskQueue}, {@link SpillingQueue}, {@link SortedMessageQueue} or
+   * {@link OffHeapQueue}), otherwise the messages would pile up on the heap
+   * anyway. They can't be counted against the budget instead: all messages of
+   * a superstep must be received before the barrier is left, but the queue is
+   * only read in the next superstep. <br/>
+   * Only this manager needs flow control: the Netty and Avro managers wait for
+   * every bundle to be received before they send the next one, which bounds
+   * the bundles in flight to one per sender.
+   */
+  public static final String RECEIVE_BUDGET = "hama.messenger.receive.budget";
+  /**
+   * Counter group that holds the milliseconds spent waiting for each peer to
+   * accept a bundle.
+   */
+  public static final String FLOW_CONTROL_COUNTER_GROUP = "FLOW_CONTROL_MS_PER_PEER";
+  /**
+   * If greater than 0, broadcasted bundles are relayed along a tree in which
+   * every peer sends to this many others, instead of being sent to every peer
+   * by the broadcaster itself. The peers relay the bundle with
+   * "hama.messenger.rpc.threads" threads of their own and acknowledge it to
+   * their parent once their subtree has it, so no RPC handler waits for
+   * another peer.
+   */
+  public static final String BROADCAST_FANOUT = "hama.messenger.broadcast.fanout";
+
+  // the longest a sender sleeps before it asks for room again, if the
+  // receiver has no handler left to wait in
+  private static final long MAX_RESERVE_WAIT_MS = 100L;
+
   private final HashMap<InetSocketAddress, HadoopMessageManager<M>> peers = new HashMap<InetSocketAddress, HadoopMessageManager<M>>();
 
   private Server server = null;
 
+  // null if puts are synchronous
+  private ExecutorService rpcPool;
+  private int window;
+  // the free slots of the window per peer
+  private final HashMap<InetSocketAddress, Semaphore> windows = new HashMap<InetSocketAddress, Semaphore>();
+  private final List<Future<Object>> pendingPuts = new LinkedList<Future<Object>>();
+
+  private long receiveBudget;
+  // bytes of the bundles that have been reserved, but not added yet
+  private long reservedBytes = 0L;
+  private final Object budgetLock = new Object();
+  // handlers that wait for room, one handler is always left for the puts
+  private int waitingReserves = 0;
+  private int maxWaitingReserves;
+  // bytes the receivers have reserved for our next bundle to them
+  private final HashMap<InetSocketAddress, Long> credits = new HashMap<InetSocketAddress, Long>();
+
+  private int fanout;
+  // relays bundles and acknowledgements outside of the RPC handlers
+  private ExecutorService relayPool;
+  // per broadcaster, the children that have not acknowledged the bundle yet
+  private final HashMap<Integer, Integer> pendingRelays = new HashMap<Integer, Integer>();
+  // the broadcasters whose bundle could not be relayed to every child
+  private final HashSet<Integer> failedRelays = new HashSet<Integer>();
+
   @Override
-  public final void init(TaskAttemptID attemptId, BSPPeer<?, ?, ?, ?, M> peer,
+  public void init(TaskAttemptID attemptId, BSPPeer<?, ?, ?, ?, M> peer,
       Configuration conf, InetSocketAddress peerAddress) {
     super.init(attemptId, peer, conf, peerAddress);
     super.initCompression(conf);
+    receiveBudget = conf.getLong(RECEIVE_BUDGET, 0L);
+    Class<?> receiveQueue = getReceiverQueueClass();
+    if (receiveBudget > 0 && !DiskQueue.class.equals(receiveQueue)
+        && !SpillingQueue.class.equals(receiveQueue)
+        && !SortedMessageQueue.class.equals(receiveQueue)
+        && !OffHeapQueue.class.equals(receiveQueue)) {
+      throw new IllegalArgumentException(RECEIVE_BUDGET
+          + " needs a receive queue that doesn't keep the messages on the "
+          + "heap, but it is " + receiveQueue + "!");
+    }
+    maxWaitingReserves = conf.getInt(RPC_HANDLERS, 4) - 1;
+    fanout = conf.getInt(BROADCAST_FANOUT, 0);
+    if (fanout > 0) {
+      relayPool = Executors.newFixedThreadPool(conf.getInt(RPC_THREADS, 4));
+    }
+    window = conf.getInt(RPC_WINDOW, DEFAULT_RPC_WINDOW);
+    if (window > 0) {
+      rpcPool = Executors.newFixedThreadPool(conf.getInt(RPC_THREADS, 4));
+    }
     startRPCServer(conf, peerAddress);
   }
 
   private final void startRPCServer(Configuration conf,
       InetSocketAddress peerAddress) {
     try {
+      // concurrent puts of the senders are handled in parallel
       this.server = RPC.getServer(this, peerAddress.getHostName(),
-          peerAddress.getPort(), conf);
+          peerAddress.getPort(), conf.getInt(RPC_HANDLERS, 4), false, conf);
       server.start();
       LOG.info(" BSPPeer address:" + peerAddress.getHostName() + " port:"
           + peerAddress.getPort());
@@ -72,46 +175,282 @@ public final class HadoopMessageManagerImpl<M extends Writable> extends
   }
 
   @Override
-  public final void close() {
+  public void close() {
     super.close();
+    if (rpcPool != null) {
+      rpcPool.shutdownNow();
+    }
+    if (relayPool != null) {
+      relayPool.shutdownNow();
+    }
     if (server != null) {
       server.stop();
     }
   }
 
   @Override
-  public final void transfer(InetSocketAddress addr, BSPMessageBundle<M> bundle)
-      throws IOException {
+  public void transfer(final InetSocketAddress addr,
+      final BSPMessageBundle<M> bundle) throws IOException {
 
-    HadoopMessageManager<M> bspPeerConnection = this.getBSPPeerConnection(addr);
+    final HadoopMessageManager<M> bspPeerConnection = this
+        .getBSPPeerConnection(addr);
 
     if (bspPeerConnection == null) {
       throw new IllegalArgumentException("Can not find " + addr.toString()
           + " to transfer messages to!");
+    } else if (rpcPool == null) {
+      put(bspPeerConnection, addr, bundle);
     } else {
-      if (compressor != null) {
-        BSPCompressedBundle compMsgBundle = compressor.compressBundle(bundle);
-        if (CompressionUtil.getCompressionRatio(compMsgBundle, bundle) < 1.0) {
-          bspPeerConnection.put(compMsgBundle);
-        } else {
-          bspPeerConnection.put(bundle);
+      final Semaphore slots = getWindow(addr);
+      try {
+        slots.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for " + addr);
+      }
+      Future<Object> future = rpcPool.submit(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          try {
+            put(bspPeerConnection, addr, bundle);
+          } finally {
+            slots.release();
+          }
+          return null;
+        }
+      });
+      synchronized (pendingPuts) {
+        pendingPuts.add(future);
+      }
+    }
+  }
+
+  @Override
+  public void finishTransfers() throws IOException {
+    List<Future<Object>> puts = null;
+    synchronized (pendingPuts) {
+      puts = new ArrayList<Future<Object>>(pendingPuts);
+      pendingPuts.clear();
+    }
+    for (Future<Object> future : puts) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for a transfer!");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
         }
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    // idle reservations would keep other senders from the receive budget
+    synchronized (credits) {
+      for (Entry<InetSocketAddress, Long> entry : credits.entrySet()) {
+        getBSPPeerConnection(entry.getKey()).release(entry.getValue());
+      }
+      credits.clear();
+    }
+  }
+
+  private void put(HadoopMessageManager<M> bspPeerConnection,
+      InetSocketAddress addr, BSPMessageBundle<M> bundle) throws IOException {
+    BSPCompressedBundle compMsgBundle = null;
+    if (compressionPolicy != null) {
+      compMsgBundle = compressionPolicy.compress(addr, bundle);
+    }
+    if (receiveBudget <= 0) {
+      if (compMsgBundle != null) {
+        bspPeerConnection.put(compMsgBundle);
       } else {
         bspPeerConnection.put(bundle);
       }
+      return;
+    }
+    long reserved = reserve(bspPeerConnection, addr, bundle.getLength());
+    long credit = 0L;
+    try {
+      if (compMsgBundle != null) {
+        credit = bspPeerConnection.put(compMsgBundle, reserved);
+      } else {
+        credit = bspPeerConnection.put(bundle, reserved);
+      }
+    } catch (IOException e) {
+      // don't keep the room of a bundle that never arrived
+      try {
+        bspPeerConnection.release(reserved);
+      } catch (Exception releaseFailure) {
+        LOG.warn("Could not release the reservation at " + addr,
+            releaseFailure);
+      }
+      throw e;
+    }
+    if (credit > 0) {
+      synchronized (credits) {
+        Long previous = credits.get(addr);
+        credits.put(addr, previous == null ? credit : previous + credit);
+      }
+    }
+  }
+
+  @Override
+  protected void transferBroadcast(BSPMessageBundle<M> bundle)
+      throws IOException {
+    if (fanout > 0 && peer.getNumPeers() > fanout + 1) {
+      // the broadcaster is the root of the tree
+      int root = peer.getPeerIndex();
+      List<InetSocketAddress> children = getChildren(root);
+      synchronized (pendingRelays) {
+        failedRelays.remove(root);
+        pendingRelays.put(root, children.size());
+      }
+      for (InetSocketAddress child : children) {
+        getBSPPeerConnection(child).relay(bundle, root);
+      }
+      synchronized (pendingRelays) {
+        while (pendingRelays.containsKey(root)) {
+          try {
+            pendingRelays.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a broadcast!");
+          }
+        }
+        if (failedRelays.remove(root)) {
+          throw new IOException("Broadcast did not reach every peer!");
+        }
+      }
+    } else {
+      super.transferBroadcast(bundle);
+    }
+  }
+
+  /**
+   * Returns the addresses of the children of this peer in the broadcast tree.
+   * The tree is a heap over the peer indices, rotated so that the root is at
+   * position 0.
+   */
+  private List<InetSocketAddress> getChildren(int root) {
+    String[] peerNames = peer.getAllPeerNames();
+    int numPeers = peerNames.length;
+    int position = (peer.getPeerIndex() - root + numPeers) % numPeers;
+    List<InetSocketAddress> children = new ArrayList<InetSocketAddress>();
+    for (int i = 1; i <= fanout; i++) {
+      long child = (long) position * fanout + i;
+      if (child >= numPeers) {
+        break;
+      }
+      // this runs outside of the sync, so don't use the socket cache
+      children.add(BSPNetUtils.getAddress(peerNames[(int) ((root + child) %
+          numPeers)]));
+    }
+    return children;
+  }
+
+  /**
+   * Returns the address of the parent of this peer in the broadcast tree.
+   */
+  private InetSocketAddress getParent(int root) {
+    String[] peerNames = peer.getAllPeerNames();
+    int numPeers = peerNames.length;
+    int position = (peer.getPeerIndex() - root + numPeers) % numPeers;
+    return BSPNetUtils.getAddress(peerNames[(root + (position - 1) / fanout)
+        % numPeers]);
+  }
+
+  /**
+   * Acknowledges the bundle of the given root to the parent of this peer.
+   */
+  private void acknowledge(final int root, final boolean failed) {
+    relayPool.submit(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        try {
+          getBSPPeerConnection(getParent(root)).relayed(root, failed);
+        } catch (Exception e) {
+          LOG.error("Could not acknowledge the broadcast of peer " + root, e);
+        }
+        return null;
+      }
+    });
+  }
+
+  @Override
+  protected void sendReductionValue(int peerIndex, Writable value,
+      boolean reduced) throws IOException {
+    getBSPPeerConnection(getAddress(peer.getPeerName(peerIndex))).reduce(
+        value, reduced);
+  }
+
+  /**
+   * Waits until the receiver has room for a bundle of the given size, the time
+   * this takes is added to the flow control counters. The room the receiver
+   * has reserved with our last put is used first, otherwise the receiver
+   * blocks the call until it has room. Only if all of its handlers are taken,
+   * the sender asks again after a while.
+   * 
+   * @return the bytes reserved for the bundle.
+   */
+  private long reserve(HadoopMessageManager<M> bspPeerConnection,
+      InetSocketAddress addr, int bytes) throws IOException {
+    Long credit = null;
+    synchronized (credits) {
+      credit = credits.remove(addr);
+    }
+    if (credit != null) {
+      if (credit >= bytes) {
+        return credit;
+      }
+      // a partial reservation could keep the receiver from accepting anything
+      bspPeerConnection.release(credit);
+    }
+    long start = System.currentTimeMillis();
+    long wait = 1L;
+    while (!bspPeerConnection.reserve(bytes)) {
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for " + addr);
+      }
+      wait = Math.min(wait * 2, MAX_RESERVE_WAIT_MS);
+    }
+    long stalled = System.currentTimeMillis() - start;
+    if (stalled > 0) {
+      peer.incrementCounter(BSPPeerImpl.PeerCounter.TIME_IN_FLOW_CONTROL_MS,
+          stalled);
+      peer.incrementCounter(FLOW_CONTROL_COUNTER_GROUP, addr.getHostName()
+          + ":" + addr.getPort(), stalled);
+    }
+    return bytes;
+  }
+
+  private Semaphore getWindow(InetSocketAddress addr) {
+    synchronized (windows) {
+      Semaphore slots = windows.get(addr);
+      if (slots == null) {
+        slots = new Semaphore(window);
+        windows.put(addr, slots);
+      }
+      return slots;
     }
   }
 
   @SuppressWarnings("unchecked")
   protected final HadoopMessageManager<M> getBSPPeerConnection(
       InetSocketAddress addr) throws IOException {
-    HadoopMessageManager<M> peer = peers.get(addr);
-    if (peer == null) {
-      peer = (HadoopMessageManager<M>) RPC.getProxy(HadoopMessageManager.class,
-          HamaRPCProtocolVersion.versionID, addr, this.conf);
-      this.peers.put(addr, peer);
+    // transfers may run concurrently when messages are streamed
+    synchronized (peers) {
+      HadoopMessageManager<M> peer = peers.get(addr);
+      if (peer == null) {
+        peer = (HadoopMessageManager<M>) RPC.getProxy(
+            HadoopMessageManager.class, HamaRPCProtocolVersion.versionID,
+            addr, this.conf);
+        this.peers.put(addr, peer);
+      }
+      return peer;
     }
-    return peer;
   }
 
   @Override
@@ -122,19 +461,156 @@ public final class HadoopMessageManagerImpl<M extends Writable> extends
 
   @Override
   public final void put(BSPMessageBundle<M> messages) {
-    for (M message : messages.getMessages()) {
-      this.localQueueForNextIteration.add(message);
-    }
+    addBundle(messages);
   }
 
   @Override
   public final void put(BSPCompressedBundle compMsgBundle) {
+    addBundle(compressor.decompressBundle(compMsgBundle));
+  }
+
+  @Override
+  public final long put(BSPMessageBundle<M> messages, long reserved) {
+    addBundle(messages);
+    return renew(reserved, messages.getLength());
+  }
+
+  @Override
+  public final long put(BSPCompressedBundle compMsgBundle, long reserved) {
     BSPMessageBundle<M> bundle = compressor.decompressBundle(compMsgBundle);
-    for (M message : bundle.getMessages()) {
+    addBundle(bundle);
+    return renew(reserved, bundle.getLength());
+  }
+
+  /**
+   * Adds the messages of a bundle that did not reserve room in the receive
+   * budget to the queue for the next superstep.
+   */
+  protected final void addBundle(BSPMessageBundle<M> bundle) {
+    for (M message : bundle) {
       this.localQueueForNextIteration.add(message);
     }
   }
 
+  @Override
+  public final void relay(final BSPMessageBundle<M> messages, final int root) {
+    // broadcasts are small, they bypass the receive budget
+    addBundle(messages);
+    final List<InetSocketAddress> children = getChildren(root);
+    if (children.isEmpty()) {
+      acknowledge(root, false);
+      return;
+    }
+    synchronized (pendingRelays) {
+      pendingRelays.put(root, children.size());
+    }
+    relayPool.submit(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        for (InetSocketAddress child : children) {
+          try {
+            getBSPPeerConnection(child).relay(messages, root);
+          } catch (Exception e) {
+            LOG.error("Could not relay the broadcast of peer " + root + " to "
+                + child, e);
+            relayed(root, true);
+          }
+        }
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public final void relayed(int root, boolean failed) {
+    boolean subtreeFailed = false;
+    synchronized (pendingRelays) {
+      if (failed) {
+        failedRelays.add(root);
+      }
+      int pending = pendingRelays.get(root) - 1;
+      if (pending > 0) {
+        pendingRelays.put(root, pending);
+        return;
+      }
+      pendingRelays.remove(root);
+      if (root == peer.getPeerIndex()) {
+        pendingRelays.notifyAll();
+        return;
+      }
+      subtreeFailed = failedRelays.remove(root);
+    }
+    acknowledge(root, subtreeFailed);
+  }
+
+  @Override
+  public final void reduce(Writable value, boolean reduced) {
+    receiveReductionValue(value, reduced);
+  }
+
+  @Override
+  public final boolean reserve(int bytes) {
+    if (receiveBudget <= 0) {
+      return true;
+    }
+    synchronized (budgetLock) {
+      // a bundle that is larger than the whole budget is accepted alone
+      if (reservedBytes + bytes <= receiveBudget || reservedBytes == 0) {
+        reservedBytes += bytes;
+        return true;
+      }
+      if (waitingReserves >= maxWaitingReserves) {
+        return false;
+      }
+      // wait here instead of being polled, the room is given back by puts
+      waitingReserves++;
+      try {
+        while (reservedBytes + bytes > receiveBudget && reservedBytes > 0) {
+          budgetLock.wait();
+        }
+        reservedBytes += bytes;
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } finally {
+        waitingReserves--;
+      }
+    }
+  }
+
+  @Override
+  public final void release(long bytes) {
+    if (receiveBudget > 0) {
+      synchronized (budgetLock) {
+        reservedBytes = Math.max(0L, reservedBytes - bytes);
+        budgetLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Releases the reservation of a bundle that has been added and reserves
+   * room for the next bundle of the same sender if there is enough.
+   * 
+   * @return the bytes reserved for the next bundle, 0 if there was no room.
+   */
+  private long renew(long reserved, int bytes) {
+    if (receiveBudget <= 0) {
+      return 0L;
+    }
+    synchronized (budgetLock) {
+      reservedBytes = Math.max(0L, reservedBytes - reserved);
+      // senders that wait in reserve() come first
+      if (waitingReserves == 0 && reservedBytes + bytes <= receiveBudget) {
+        reservedBytes += bytes;
+        return bytes;
+      }
+      budgetLock.notifyAll();
+      return 0L;
+    }
+  }
+
   @Override
   public final long getProtocolVersion(String arg0, long arg1)
       throws IOException {
@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hama.bsp.TaskAttemptID;
+import org.apache.hama.bsp.message.type.IntegerDoubleArrayMessage;
+
+/**
+ * Queue that appends every {@link IntegerDoubleArrayMessage} it gets to a
+ * single batch. Used as the outgoing queue, all values for a peer are
+ * transferred as one message, and the caller can clear and reuse its batch
+ * right after sending it. Used as the receiving queue, the values of all peers
+ * arrive in one batch, so there is no object per value on the whole way.
+ * <br/>
+ * Therefore {@link #size()} is either zero or one.
+ */
+public final class IntegerDoubleArrayQueue implements
+    MessageQueue<IntegerDoubleArrayMessage> {
+
+  private IntegerDoubleArrayMessage batch;
+  private Configuration conf;
+
+  @Override
+  public void addAll(Collection<IntegerDoubleArrayMessage> col) {
+    for (IntegerDoubleArrayMessage item : col) {
+      add(item);
+    }
+  }
+
+  @Override
+  public void addAll(MessageQueue<IntegerDoubleArrayMessage> otherqueue) {
+    IntegerDoubleArrayMessage poll = null;
+    while ((poll = otherqueue.poll()) != null) {
+      add(poll);
+    }
+  }
+
+  @Override
+  public void add(IntegerDoubleArrayMessage item) {
+    if (batch == null) {
+      batch = new IntegerDoubleArrayMessage(item.size());
+    }
+    batch.addAll(item);
+  }
+
+  @Override
+  public void clear() {
+    batch = null;
+  }
+
+  @Override
+  public IntegerDoubleArrayMessage poll() {
+    IntegerDoubleArrayMessage item = batch;
+    batch = null;
+    return item;
+  }
+
+  @Override
+  public int size() {
+    return batch == null ? 0 : 1;
+  }
+
+  @Override
+  public Iterator<IntegerDoubleArrayMessage> iterator() {
+    if (batch == null) {
+      return Collections.<IntegerDoubleArrayMessage> emptyList().iterator();
+    }
+    return Collections.singletonList(batch).iterator();
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  // not doing much here
+  @Override
+  public void init(Configuration conf, TaskAttemptID id) {
+
+  }
+
+  @Override
+  public void close() {
+
+  }
+
+  @Override
+  public void prepareRead() {
+
+  }
+
+  @Override
+  public void prepareWrite() {
+
+  }
+
+}
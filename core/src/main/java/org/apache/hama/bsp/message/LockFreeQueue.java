@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hama.bsp.TaskAttemptID;
+
+/**
+ * A synchronized queue for many producers and a single consumer. Producers
+ * append to a lock-free {@link ConcurrentLinkedQueue}, the messages are moved
+ * into the wrapped queue when the consumer asks for it with
+ * {@link #getMessageQueue()}. <br/>
+ * Only {@link #add(Object)} and {@link #addAll(Collection)} may be called
+ * concurrently, all other methods must be called by the consumer.
+ */
+public final class LockFreeQueue<T> implements SynchronizedQueue<T> {
+
+  private final MessageQueue<T> queue;
+  private final ConcurrentLinkedQueue<T> incoming = new ConcurrentLinkedQueue<T>();
+  // size() of the ConcurrentLinkedQueue has to traverse it
+  private final AtomicInteger incomingSize = new AtomicInteger();
+
+  private LockFreeQueue(MessageQueue<T> queue) {
+    this.queue = queue;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    drain();
+    return queue.iterator();
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    queue.setConf(conf);
+  }
+
+  @Override
+  public Configuration getConf() {
+    return queue.getConf();
+  }
+
+  @Override
+  public void init(Configuration conf, TaskAttemptID id) {
+    queue.init(conf, id);
+  }
+
+  @Override
+  public void close() {
+    incoming.clear();
+    incomingSize.set(0);
+    queue.close();
+  }
+
+  @Override
+  public void prepareRead() {
+    drain();
+    queue.prepareRead();
+  }
+
+  @Override
+  public void addAll(Collection<T> col) {
+    for (T item : col) {
+      add(item);
+    }
+  }
+
+  @Override
+  public void add(T item) {
+    incoming.add(item);
+    incomingSize.incrementAndGet();
+  }
+
+  @Override
+  public void clear() {
+    incoming.clear();
+    incomingSize.set(0);
+    queue.clear();
+  }
+
+  @Override
+  public Object poll() {
+    // everything in the wrapped queue is older than the incoming messages
+    T item = queue.poll();
+    if (item == null) {
+      item = incoming.poll();
+      if (item != null) {
+        incomingSize.decrementAndGet();
+      }
+    }
+    return item;
+  }
+
+  @Override
+  public int size() {
+    return queue.size() + incomingSize.get();
+  }
+
+  @Override
+  public MessageQueue<T> getMessageQueue() {
+    drain();
+    return queue;
+  }
+
+  /**
+   * Moves the messages that were added so far into the wrapped queue.
+   */
+  private void drain() {
+    T item = null;
+    while ((item = incoming.poll()) != null) {
+      incomingSize.decrementAndGet();
+      queue.add(item);
+    }
+  }
+
+  /*
+   * static constructor methods to be type safe
+   */
+
+  public static <T> SynchronizedQueue<T> synchronize(MessageQueue<T> queue) {
+    return new LockFreeQueue<T>(queue);
+  }
+
+}
@@ -26,6 +26,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Writable;
 import org.apache.hama.bsp.BSPMessageBundle;
 import org.apache.hama.bsp.BSPPeer;
+import org.apache.hama.bsp.Combiner;
 import org.apache.hama.bsp.TaskAttemptID;
 
 /**
@@ -36,6 +37,42 @@ import org.apache.hama.bsp.TaskAttemptID;
 public interface MessageManager<M extends Writable> {
   
   public static final String QUEUE_TYPE_CLASS = "hama.messenger.queue.class";
+  public static final String RECEIVE_QUEUE_TYPE_CLASS = "hama.messenger.receive.queue.class";
+  /**
+   * If true, incoming messages are added to a {@link LockFreeQueue} instead of
+   * a {@link SingleLockQueue}. It holds every message on the heap until the
+   * queues are switched, so it is only used if the receive queue is a
+   * {@link MemoryQueue}.
+   */
+  public static final String RECEIVE_QUEUE_LOCK_FREE = "hama.messenger.receive.queue.lockfree";
+  /**
+   * If true and a {@link org.apache.hama.bsp.KeyedCombiner} is configured,
+   * incoming messages are combined per key as they arrive, so the incoming
+   * queue only holds a message per distinct key.
+   */
+  public static final String RECEIVE_COMBINING = "hama.messenger.receive.combining";
+  /**
+   * If true, messages a peer sends to itself are put into its incoming queue
+   * directly instead of being transferred. Those messages would skip the
+   * combiner and checkpointing, so this is ignored if either is configured.
+   * False by default.
+   */
+  public static final String LOOPBACK = "hama.messenger.loopback";
+  /**
+   * Number of messages after which the outgoing messages of a peer are flushed
+   * in the background while the peer still computes. 0 disables this
+   * threshold. Streamed messages are serialized as they are sent and bypass
+   * the outgoing queues, so they can neither be combined by the sender nor be
+   * checkpointed.
+   */
+  public static final String STREAMING_THRESHOLD = "hama.messenger.streaming.threshold";
+  /**
+   * Serialized bytes after which the outgoing messages of a peer are flushed
+   * in the background, whichever of the two thresholds is reached first. 0
+   * disables this threshold, streaming is disabled if both are 0.
+   */
+  public static final String STREAMING_THRESHOLD_BYTES = "hama.messenger.streaming.threshold.bytes";
+  public static final String STREAMING_THREADS = "hama.messenger.streaming.threads";
 
   /**
    * Init can be used to start servers and initialize internal state. If you are
@@ -66,7 +103,24 @@ public interface MessageManager<M extends Writable> {
   public void send(String peerName, M msg) throws IOException;
 
   /**
-   * Should be called when all messages were send with send().
+   * Send a message to the peer with the given index.
+   * 
+   * @throws IOException
+   */
+  public void send(int peerIndex, M msg) throws IOException;
+
+  /**
+   * Send a message to every peer, including this one. The message is
+   * serialized only once, no matter how many peers there are.
+   * 
+   * @throws IOException
+   */
+  public void broadcast(M msg) throws IOException;
+
+  /**
+   * Should be called when all messages were send with send(). In streaming
+   * mode this waits until all bundles that were flushed in the background have
+   * been transferred.
    * 
    * @throws IOException
    */
@@ -85,6 +139,34 @@ public interface MessageManager<M extends Writable> {
   public void transfer(InetSocketAddress addr, BSPMessageBundle<M> bundle)
       throws IOException;
 
+  /**
+   * Blocks until every bundle that was passed to
+   * {@link #transfer(InetSocketAddress, BSPMessageBundle)} has been delivered.
+   * Called before the peer leaves the barrier, so transports that transfer
+   * asynchronously must wait for their pending transfers here.
+   * 
+   * @throws IOException if a transfer failed.
+   */
+  public void finishTransfers() throws IOException;
+
+  /**
+   * Transfers the messages that were broadcasted since the last call to every
+   * other peer. Called after the outgoing queues have been transferred.
+   * 
+   * @throws IOException
+   */
+  public void transferBroadcasts() throws IOException;
+
+  /**
+   * Reduces the value of this peer with the values of all other peers. Every
+   * peer must call this in the same sync.
+   * 
+   * @return the reduced value of all peers.
+   * @throws IOException
+   */
+  public <W extends Writable> W allReduce(W value, Combiner<W> combiner)
+      throws IOException;
+
   /**
    * Clears the outgoing queue. Can be used to switch queues.
    */
@@ -0,0 +1,341 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.BSPMessageBundle;
+import org.apache.hama.bsp.BSPPeer;
+import org.apache.hama.bsp.BSPPeerImpl;
+import org.apache.hama.bsp.TaskAttemptID;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.compression.ZlibDecoder;
+import org.jboss.netty.handler.codec.compression.ZlibEncoder;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+/**
+ * Message manager that sends bundles over persistent Netty connections, one
+ * per peer. The serialized bundle is copied once into a direct buffer of the
+ * exact size of its frame, which spares the copy NIO makes of heap buffers.
+ * The receiver waits until a frame is complete and copies the messages out of
+ * the direct buffer Netty read it into, so every bundle is copied once on
+ * either side. <br/>
+ * If "hama.messenger.netty.compression.level" is between 1 and 9, a zlib
+ * stage compresses the stream of each connection, so the
+ * {@link org.apache.hama.bsp.message.compress.BSPMessageCompressor} is not
+ * used by this manager. Every transfer waits for the acknowledgement of the
+ * receiver, so the messages are in its queue once transfer() returns.
+ */
+public final class NettyMessageManagerImpl<M extends Writable> extends
+    AbstractMessageManager<M> {
+
+  private static final Log LOG = LogFactory
+      .getLog(NettyMessageManagerImpl.class);
+
+  public static final String COMPRESSION_LEVEL = "hama.messenger.netty.compression.level";
+  /**
+   * The largest bundle in bytes a peer accepts, a connection that announces a
+   * larger one is closed. Defaults to four times
+   * "hama.messenger.transfer.chunk.size".
+   */
+  public static final String MAX_FRAME_SIZE = "hama.messenger.netty.max.frame.size";
+
+  private static final byte ACK = 1;
+
+  private final HashMap<InetSocketAddress, Connection> peers = new HashMap<InetSocketAddress, Connection>();
+  private final ChannelGroup channels = new DefaultChannelGroup(
+      NettyMessageManagerImpl.class.getSimpleName());
+
+  private ServerBootstrap server;
+  private ClientBootstrap client;
+  private int compressionLevel;
+  private int maxFrameSize;
+
+  @Override
+  public void init(TaskAttemptID attemptId, BSPPeer<?, ?, ?, ?, M> peer,
+      Configuration conf, InetSocketAddress peerAddress) {
+    super.init(attemptId, peer, conf, peerAddress);
+    compressionLevel = conf.getInt(COMPRESSION_LEVEL, 0);
+    maxFrameSize = conf.getInt(MAX_FRAME_SIZE, 4 * conf.getInt(
+        BSPPeerImpl.TRANSFER_CHUNK_SIZE,
+        BSPPeerImpl.DEFAULT_TRANSFER_CHUNK_SIZE));
+
+    server = new ServerBootstrap(new NioServerSocketChannelFactory(
+        Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+    server.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = getCompressionPipeline();
+        pipeline.addLast("decoder", new BundleDecoder<M>(maxFrameSize));
+        pipeline.addLast("handler", new ReceiveHandler());
+        return pipeline;
+      }
+    });
+    server.setOption("child.tcpNoDelay", true);
+    server.setOption("child.keepAlive", true);
+    server.setOption("child.bufferFactory",
+        DirectChannelBufferFactory.getInstance());
+    channels.add(server.bind(peerAddress));
+    LOG.info(" BSPPeer address:" + peerAddress.getHostName() + " port:"
+        + peerAddress.getPort());
+
+    client = new ClientBootstrap(new NioClientSocketChannelFactory(
+        Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+    client.setOption("tcpNoDelay", true);
+    client.setOption("keepAlive", true);
+    client.setOption("bufferFactory", DirectChannelBufferFactory.getInstance());
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    channels.close().awaitUninterruptibly();
+    if (client != null) {
+      client.releaseExternalResources();
+    }
+    if (server != null) {
+      server.releaseExternalResources();
+    }
+  }
+
+  @Override
+  public void transfer(InetSocketAddress addr, BSPMessageBundle<M> bundle)
+      throws IOException {
+    Connection connection = getConnection(addr);
+    int length = bundle.getLength();
+    // one transfer at a time per connection, so acks can't get mixed up
+    synchronized (connection) {
+      Channel channel = connection.channel;
+      ChannelBuffer buffer = channel.getConfig().getBufferFactory()
+          .getBuffer(4 + length);
+      buffer.writeInt(length);
+      bundle.write(new ChannelBufferOutputStream(buffer));
+      channel.write(buffer);
+      Object ack = null;
+      try {
+        ack = connection.acks.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for " + addr);
+      }
+      if (ack instanceof Throwable) {
+        IOException e = new IOException("Transfer to " + addr + " failed!");
+        e.initCause((Throwable) ack);
+        throw e;
+      }
+    }
+    peer.incrementCounter(BSPPeerImpl.PeerCounter.MESSAGE_BYTES_TRANSFERED,
+        length);
+  }
+
+  private Connection getConnection(InetSocketAddress addr) throws IOException {
+    // transfers may run concurrently
+    synchronized (peers) {
+      Connection connection = peers.get(addr);
+      if (connection == null || !connection.channel.isConnected()) {
+        connection = connect(addr);
+        peers.put(addr, connection);
+      }
+      return connection;
+    }
+  }
+
+  private Connection connect(InetSocketAddress addr) throws IOException {
+    final Connection connection = new Connection();
+    client.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = getCompressionPipeline();
+        pipeline.addLast("decoder", new AckDecoder());
+        pipeline.addLast("handler", new AckHandler(connection));
+        return pipeline;
+      }
+    });
+    ChannelFuture future = client.connect(addr).awaitUninterruptibly();
+    if (!future.isSuccess()) {
+      IOException e = new IOException("Could not connect to " + addr);
+      e.initCause(future.getCause());
+      throw e;
+    }
+    connection.channel = future.getChannel();
+    channels.add(connection.channel);
+    return connection;
+  }
+
+  /**
+   * @return a new pipeline that holds the zlib stage if compression is
+   *         enabled. Frames are decoded after inflating and encoded before
+   *         deflating.
+   */
+  private ChannelPipeline getCompressionPipeline() {
+    ChannelPipeline pipeline = Channels.pipeline();
+    if (compressionLevel > 0) {
+      pipeline.addLast("deflater", new ZlibEncoder(compressionLevel));
+      pipeline.addLast("inflater", new ZlibDecoder());
+    }
+    return pipeline;
+  }
+
+  /**
+   * A persistent connection to a peer and the acknowledgements it received.
+   */
+  private static final class Connection {
+    private Channel channel;
+    private final LinkedBlockingQueue<Object> acks = new LinkedBlockingQueue<Object>();
+  }
+
+  /**
+   * Decodes a length prefixed bundle once it was completely received. The
+   * serialized messages are copied from the receive buffer into the bundle.
+   */
+  private static final class BundleDecoder<M extends Writable> extends
+      FrameDecoder {
+
+    private final int maxFrameSize;
+
+    BundleDecoder(int maxFrameSize) {
+      this.maxFrameSize = maxFrameSize;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel,
+        ChannelBuffer buffer) throws Exception {
+      if (buffer.readableBytes() < 4) {
+        return null;
+      }
+      int length = buffer.getInt(buffer.readerIndex());
+      if (length < 0 || length > maxFrameSize) {
+        // don't buffer a frame of a corrupt length
+        channel.close();
+        throw new IOException("Corrupted frame with length " + length);
+      }
+      if (buffer.readableBytes() < 4 + length) {
+        return null;
+      }
+      buffer.skipBytes(4);
+      BSPMessageBundle<M> bundle = new BSPMessageBundle<M>();
+      bundle.readFields(new ChannelBufferInputStream(buffer, length));
+      return bundle;
+    }
+
+  }
+
+  private static final class AckDecoder extends FrameDecoder {
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel,
+        ChannelBuffer buffer) throws Exception {
+      if (buffer.readableBytes() < 1) {
+        return null;
+      }
+      return buffer.readByte();
+    }
+
+  }
+
+  private final class ReceiveHandler extends SimpleChannelUpstreamHandler {
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e)
+        throws Exception {
+      channels.add(e.getChannel());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+        throws Exception {
+      BSPMessageBundle<M> bundle = (BSPMessageBundle<M>) e.getMessage();
+      peer.incrementCounter(BSPPeerImpl.PeerCounter.MESSAGE_BYTES_RECEIVED,
+          bundle.getLength());
+      peer.incrementCounter(BSPPeerImpl.PeerCounter.TOTAL_MESSAGES_RECEIVED,
+          bundle.size());
+      for (M message : bundle) {
+        addIncoming(message);
+      }
+      e.getChannel().write(ChannelBuffers.wrappedBuffer(new byte[] { ACK }));
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e)
+        throws Exception {
+      LOG.error("Failed to receive messages!", e.getCause());
+      e.getChannel().close();
+    }
+
+  }
+
+  private static final class AckHandler extends SimpleChannelUpstreamHandler {
+
+    private final Connection connection;
+
+    AckHandler(Connection connection) {
+      this.connection = connection;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+        throws Exception {
+      connection.acks.add(e.getMessage());
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+        throws Exception {
+      // wake up a transfer that waits for an ack
+      connection.acks.add(new IOException("Connection was closed!"));
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e)
+        throws Exception {
+      connection.acks.add(e.getCause());
+      e.getChannel().close();
+    }
+
+  }
+
+}
@@ -0,0 +1,291 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hama.bsp.TaskAttemptID;
+
+/**
+ * A queue that keeps its messages serialized in direct (off-heap)
+ * {@link ByteBuffer} segments instead of holding every message as a live
+ * object. Messages are serialized when they are added and deserialized lazily
+ * when they are polled or iterated, so the heap only holds the messages that
+ * are currently in use. <br/>
+ * Every record is stored as a short class index, an int length and the raw
+ * bytes of the message. The size of a segment can be configured with
+ * "hama.messenger.offheap.segment.size", messages that are larger than a
+ * segment get a segment of their own. <br/>
+ * Note that direct memory is only released once the segments are garbage
+ * collected, so make sure -XX:MaxDirectMemorySize is large enough for your
+ * supersteps.
+ */
+public final class OffHeapQueue<M extends Writable> implements MessageQueue<M> {
+
+  public static final String SEGMENT_SIZE_KEY = "hama.messenger.offheap.segment.size";
+  public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+  // short class index + int length
+  private static final int RECORD_HEADER_SIZE = 6;
+  // how many free segments are kept for reuse
+  private static final int MAX_POOLED_SEGMENTS = 2;
+
+  private final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+  private final LinkedList<ByteBuffer> pool = new LinkedList<ByteBuffer>();
+  private final ArrayList<Class<M>> classes = new ArrayList<Class<M>>();
+
+  private final DataOutputBuffer serializationBuffer = new DataOutputBuffer();
+  private final DataInputBuffer deserializationBuffer = new DataInputBuffer();
+  private byte[] readBytes = new byte[128];
+
+  private Configuration conf;
+  private int segmentSize = DEFAULT_SEGMENT_SIZE;
+  private int size = 0;
+
+  // read cursor, the write cursor is always the position of the last segment
+  private int readSegment = 0;
+  private ByteBuffer readView;
+
+  @Override
+  public void init(Configuration conf, TaskAttemptID id) {
+    this.conf = conf;
+    this.segmentSize = conf.getInt(SEGMENT_SIZE_KEY, DEFAULT_SEGMENT_SIZE);
+  }
+
+  @Override
+  public void close() {
+    clear();
+    pool.clear();
+  }
+
+  @Override
+  public void prepareRead() {
+
+  }
+
+  @Override
+  public void prepareWrite() {
+
+  }
+
+  @Override
+  public void addAll(Collection<M> col) {
+    for (M item : col) {
+      add(item);
+    }
+  }
+
+  @Override
+  public void addAll(MessageQueue<M> otherqueue) {
+    M poll = null;
+    while ((poll = otherqueue.poll()) != null) {
+      add(poll);
+    }
+  }
+
+  @Override
+  public void add(M item) {
+    try {
+      serializationBuffer.reset();
+      item.write(serializationBuffer);
+    } catch (IOException e) {
+      // we are writing into memory, this should never happen
+      throw new RuntimeException(e);
+    }
+    int length = serializationBuffer.getLength();
+    ByteBuffer segment = getWritableSegment(RECORD_HEADER_SIZE + length);
+    segment.putShort(getClassIndex(item));
+    segment.putInt(length);
+    segment.put(serializationBuffer.getData(), 0, length);
+    size++;
+  }
+
+  @Override
+  public void clear() {
+    for (ByteBuffer segment : segments) {
+      if (segment != null) {
+        recycle(segment);
+      }
+    }
+    segments.clear();
+    readSegment = 0;
+    readView = null;
+    size = 0;
+  }
+
+  @Override
+  public M poll() {
+    if (size == 0) {
+      return null;
+    }
+    // skip over the segments that we have completely read
+    while (readView == null
+        || readView.position() == segments.get(readSegment).position()) {
+      if (readView != null) {
+        recycle(segments.get(readSegment));
+        segments.set(readSegment, null);
+        readSegment++;
+      }
+      readView = segments.get(readSegment).duplicate();
+      readView.position(0);
+    }
+    M item = read(readView);
+    size--;
+    if (size == 0) {
+      // everything was consumed, start over with the first segment
+      clear();
+    }
+    return item;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Iterator<M> iterator() {
+    return new OffHeapIterator();
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  /**
+   * Returns the segment where the next record of the given size should be
+   * written to, allocates a new one if the record does not fit into the current
+   * segment.
+   */
+  private ByteBuffer getWritableSegment(int recordSize) {
+    if (!segments.isEmpty()) {
+      ByteBuffer last = segments.get(segments.size() - 1);
+      if (last.remaining() >= recordSize) {
+        return last;
+      }
+    }
+    ByteBuffer segment = null;
+    if (recordSize <= segmentSize && !pool.isEmpty()) {
+      segment = pool.poll();
+      segment.clear();
+    } else {
+      segment = ByteBuffer.allocateDirect(Math.max(segmentSize, recordSize));
+    }
+    segments.add(segment);
+    return segment;
+  }
+
+  private void recycle(ByteBuffer segment) {
+    if (segment.capacity() == segmentSize && pool.size() < MAX_POOLED_SEGMENTS) {
+      pool.add(segment);
+    }
+  }
+
+  private short getClassIndex(M item) {
+    @SuppressWarnings("unchecked")
+    Class<M> clazz = (Class<M>) item.getClass();
+    // usually there is just a single message class, so this is cheap
+    for (int i = 0; i < classes.size(); i++) {
+      if (classes.get(i) == clazz) {
+        return (short) i;
+      }
+    }
+    if (classes.size() == Short.MAX_VALUE) {
+      throw new IllegalStateException("Too many distinct message classes!");
+    }
+    classes.add(clazz);
+    return (short) (classes.size() - 1);
+  }
+
+  /**
+   * Deserializes the record at the current position of the given view and
+   * advances the position behind it.
+   */
+  private M read(ByteBuffer view) {
+    short classIndex = view.getShort();
+    int length = view.getInt();
+    if (readBytes.length < length) {
+      readBytes = new byte[Math.max(length, readBytes.length * 2)];
+    }
+    view.get(readBytes, 0, length);
+    deserializationBuffer.reset(readBytes, length);
+    M item = ReflectionUtils.newInstance(classes.get(classIndex), conf);
+    try {
+      item.readFields(deserializationBuffer);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return item;
+  }
+
+  /**
+   * Iterates over the queue without consuming it.
+   */
+  private class OffHeapIterator implements Iterator<M> {
+
+    private int segment = readSegment;
+    private ByteBuffer view = readView == null ? null : readView.duplicate();
+    private int remaining = size;
+
+    @Override
+    public boolean hasNext() {
+      return remaining > 0;
+    }
+
+    @Override
+    public M next() {
+      if (remaining == 0) {
+        throw new NoSuchElementException();
+      }
+      while (view == null
+          || view.position() == segments.get(segment).position()) {
+        if (view != null) {
+          segment++;
+        }
+        view = segments.get(segment).duplicate();
+        view.position(0);
+      }
+      remaining--;
+      return read(view);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
+}
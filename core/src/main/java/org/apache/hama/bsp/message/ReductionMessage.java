@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * A value of a {@link ReductionTree}, which managers without a channel of
+ * their own for the reduction transfer in a bundle like any other message.
+ */
+final class ReductionMessage implements Writable {
+
+  private Writable value;
+  private boolean reduced;
+
+  public ReductionMessage() {
+  }
+
+  public ReductionMessage(Writable value, boolean reduced) {
+    this.value = value;
+    this.reduced = reduced;
+  }
+
+  public Writable getValue() {
+    return value;
+  }
+
+  public boolean isReduced() {
+    return reduced;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeBoolean(reduced);
+    ObjectWritable.writeObject(out, value, value.getClass(), null);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    reduced = in.readBoolean();
+    value = (Writable) ObjectWritable.readObject(in, null);
+  }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.Combiner;
+
+/**
+ * Reduces a value of every peer along a tree and hands the result back down
+ * the same tree, so every peer ends up with the reduced value. <br/>
+ * The tree is a heap over the peer indices with "hama.messenger.reduce.fanout"
+ * children per peer: every peer waits for the partial values of its children,
+ * combines them with its own and sends the result to its parent. Peer 0 sends
+ * the final value to its children, which pass it on. No peer handles more than
+ * fanout + 1 values and the reduction takes O(log N) rounds. <br/>
+ * Like every collective this must be run by all peers, otherwise the parents
+ * of the missing peers wait forever.
+ */
+public abstract class ReductionTree {
+
+  public static final String FANOUT = "hama.messenger.reduce.fanout";
+  public static final int DEFAULT_FANOUT = 4;
+
+  private final int fanout;
+  // partial values of our children, they may arrive before we reduce
+  private final LinkedList<Writable> partials = new LinkedList<Writable>();
+  // the final value sent by our parent
+  private Writable result;
+
+  public ReductionTree(Configuration conf) {
+    this.fanout = Math.max(1, conf.getInt(FANOUT, DEFAULT_FANOUT));
+  }
+
+  /**
+   * Sends a value to another peer, which must pass it to
+   * {@link #receive(Writable, boolean)} of its tree.
+   * 
+   * @param peerIndex the index of the receiving peer.
+   * @param value the value to send.
+   * @param reduced true if this is the final value, false if it is the partial
+   *          value of a child.
+   */
+  protected abstract void send(int peerIndex, Writable value, boolean reduced)
+      throws IOException;
+
+  /**
+   * Called when a value of another peer arrives.
+   */
+  public final synchronized void receive(Writable value, boolean reduced) {
+    if (reduced) {
+      result = value;
+    } else {
+      partials.add(value);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Reduces the value of this peer with the values of all other peers and
+   * blocks until the final value is known.
+   * 
+   * @return the reduced value of all peers.
+   */
+  @SuppressWarnings("unchecked")
+  public final <W extends Writable> W reduce(W value, Combiner<W> combiner,
+      int peerIndex, int numPeers) throws IOException {
+    long firstChild = (long) peerIndex * fanout + 1;
+    int numChildren = (int) Math.max(0L,
+        Math.min(fanout, numPeers - firstChild));
+
+    List<W> values = new ArrayList<W>(numChildren + 1);
+    values.add(value);
+    synchronized (this) {
+      while (partials.size() < numChildren) {
+        waitForValue();
+      }
+      for (int i = 0; i < numChildren; i++) {
+        values.add((W) partials.removeFirst());
+      }
+    }
+    W reduced = values.size() == 1 ? value : combiner.combine(values);
+
+    if (peerIndex > 0) {
+      send((peerIndex - 1) / fanout, reduced, false);
+      synchronized (this) {
+        while (result == null) {
+          waitForValue();
+        }
+        reduced = (W) result;
+        result = null;
+      }
+    }
+    for (int i = 0; i < numChildren; i++) {
+      send((int) (firstChild + i), reduced, true);
+    }
+    return reduced;
+  }
+
+  private void waitForValue() throws IOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the reduction!");
+    }
+  }
+
+}
@@ -0,0 +1,265 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.BSPJobID;
+import org.apache.hama.bsp.BSPMessageBundle;
+import org.apache.hama.bsp.BSPPeer;
+import org.apache.hama.bsp.TaskAttemptID;
+
+/**
+ * A {@link HadoopMessageManagerImpl} that exchanges the bundles for peers on
+ * the same host through memory-mapped files instead of the loopback network.
+ * <br/>
+ * Every peer owns an inbox directory below "hama.messenger.shm.dir" (/dev/shm
+ * by default), a co-located sender creates a {@link SharedMemoryRing} of
+ * "hama.messenger.shm.ring.size" bytes in there the first time it transfers to
+ * that peer. A background thread of the receiver drains its rings into the
+ * queue of the next superstep, the rest is drained when the queues are
+ * switched after the barrier. <br/>
+ * Remote peers, peers without an inbox and bundles that are larger than a ring
+ * are transferred via RPC, so is everything on JVMs without
+ * {@code sun.misc.Unsafe}.
+ */
+public final class SharedMemoryMessageManagerImpl<M extends Writable> extends
+    HadoopMessageManagerImpl<M> {
+
+  private static final Log LOG = LogFactory
+      .getLog(SharedMemoryMessageManagerImpl.class);
+
+  public static final String SHM_DIR = "hama.messenger.shm.dir";
+  public static final String RING_SIZE = "hama.messenger.shm.ring.size";
+  public static final int DEFAULT_RING_SIZE = 8 * 1024 * 1024;
+
+  private static final String RING_SUFFIX = ".ring";
+  // how long the receiver sleeps if there was nothing to read
+  private static final long POLL_MILLIS = 1L;
+  // how often the receiver looks for rings of new senders
+  private static final long SCAN_MILLIS = 100L;
+
+  private final HashMap<InetSocketAddress, SharedMemoryRing> outgoingRings = new HashMap<InetSocketAddress, SharedMemoryRing>();
+  // peers that are not reachable via shared memory
+  private final HashSet<InetSocketAddress> networkPeers = new HashSet<InetSocketAddress>();
+  private final HashMap<String, SharedMemoryRing> incomingRings = new HashMap<String, SharedMemoryRing>();
+
+  private File shmDir;
+  private File inbox;
+  private int ringSize;
+  private Receiver receiver;
+
+  @Override
+  public void init(TaskAttemptID attemptId, BSPPeer<?, ?, ?, ?, M> peer,
+      Configuration conf, InetSocketAddress peerAddress) {
+    super.init(attemptId, peer, conf, peerAddress);
+    this.ringSize = conf.getInt(RING_SIZE, DEFAULT_RING_SIZE);
+    this.shmDir = new File(conf.get(SHM_DIR, "/dev/shm"));
+    if (!SharedMemoryRing.isSupported()) {
+      LOG.warn("Shared memory rings are not supported by this JVM, "
+          + "all messages will be sent over the network!");
+      return;
+    }
+    if (!shmDir.isDirectory() || !shmDir.canWrite()) {
+      LOG.warn(shmDir + " is not a writable directory, "
+          + "all messages will be sent over the network!");
+      return;
+    }
+    File dir = getInbox(shmDir, attemptId.getJobID(), peerAddress.getPort());
+    // a previous attempt might have left its inbox behind
+    FileUtil.fullyDelete(dir);
+    if (!dir.mkdirs()) {
+      LOG.warn("Could not create " + dir
+          + ", all messages will be sent over the network!");
+      return;
+    }
+    this.inbox = dir;
+    this.receiver = new Receiver();
+    receiver.start();
+  }
+
+  @Override
+  public void close() {
+    if (receiver != null) {
+      receiver.interrupt();
+      try {
+        receiver.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    super.close();
+    if (inbox != null) {
+      // senders that are still mapping a ring notice that it is gone
+      FileUtil.fullyDelete(inbox);
+    }
+  }
+
+  @Override
+  public void transfer(InetSocketAddress addr, BSPMessageBundle<M> bundle)
+      throws IOException {
+    SharedMemoryRing ring = getRing(addr);
+    if (ring != null) {
+      DataOutputBuffer out = new DataOutputBuffer();
+      bundle.write(out);
+      if (ring.fits(out.getLength())) {
+        ring.write(out.getData(), out.getLength());
+        return;
+      }
+    }
+    super.transfer(addr, bundle);
+  }
+
+  @Override
+  public void clearOutgoingQueues() {
+    if (inbox != null) {
+      // every sender has finished writing when we passed the barrier
+      try {
+        receive(true);
+      } catch (IOException e) {
+        throw new RuntimeException("Could not read the shared memory of "
+            + peerAddress, e);
+      }
+    }
+    super.clearOutgoingQueues();
+  }
+
+  /**
+   * @return the ring to the given peer or null if it must be reached via the
+   *         network.
+   */
+  private SharedMemoryRing getRing(InetSocketAddress addr) throws IOException {
+    // transfers may run concurrently when messages are streamed
+    synchronized (outgoingRings) {
+      SharedMemoryRing ring = outgoingRings.get(addr);
+      if (ring != null || networkPeers.contains(addr)) {
+        return ring;
+      }
+      File targetInbox = getInbox(shmDir, attemptId.getJobID(), addr.getPort());
+      if (inbox == null || !isColocated(addr) || !targetInbox.isDirectory()) {
+        networkPeers.add(addr);
+        return null;
+      }
+      ring = SharedMemoryRing.create(new File(targetInbox,
+          peerAddress.getPort() + RING_SUFFIX), ringSize);
+      outgoingRings.put(addr, ring);
+      return ring;
+    }
+  }
+
+  private boolean isColocated(InetSocketAddress addr) {
+    if (addr.equals(peerAddress)) {
+      // we never write to our own inbox
+      return false;
+    }
+    InetAddress address = addr.getAddress();
+    if (address != null && address.equals(peerAddress.getAddress())) {
+      return true;
+    }
+    return addr.getHostName().equals(peerAddress.getHostName());
+  }
+
+  /**
+   * Drains all rings of this peer into the queue for the next superstep.
+   *
+   * @param scan true if the inbox should be checked for new senders.
+   * @return true if at least a single bundle was received.
+   */
+  private boolean receive(boolean scan) throws IOException {
+    synchronized (incomingRings) {
+      if (scan) {
+        String[] names = inbox.list();
+        if (names != null) {
+          for (String name : names) {
+            if (name.endsWith(RING_SUFFIX) && !incomingRings.containsKey(name)) {
+              incomingRings.put(name, SharedMemoryRing.open(new File(inbox,
+                  name)));
+            }
+          }
+        }
+      }
+      boolean received = false;
+      for (SharedMemoryRing ring : incomingRings.values()) {
+        byte[] data = null;
+        while ((data = ring.read()) != null) {
+          DataInputBuffer in = new DataInputBuffer();
+          in.reset(data, data.length);
+          BSPMessageBundle<M> bundle = new BSPMessageBundle<M>();
+          bundle.readFields(in);
+          // the size of the ring already bounds what a sender has in flight
+          addBundle(bundle);
+          received = true;
+        }
+      }
+      return received;
+    }
+  }
+
+  private static File getInbox(File shmDir, BSPJobID jobId, int port) {
+    // co-located peers always have distinct ports
+    return new File(shmDir, "hama_" + jobId + "_" + port);
+  }
+
+  /**
+   * Polls the rings of this peer, so senders don't wait for the barrier if a
+   * ring runs full.
+   */
+  private class Receiver extends Thread {
+
+    public Receiver() {
+      super("Shared memory receiver for " + peerAddress);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      long lastScan = 0L;
+      while (!isInterrupted()) {
+        try {
+          long now = System.currentTimeMillis();
+          boolean scan = now - lastScan >= SCAN_MILLIS;
+          if (scan) {
+            lastScan = now;
+          }
+          if (!receive(scan)) {
+            Thread.sleep(POLL_MILLIS);
+          }
+        } catch (InterruptedException e) {
+          return;
+        } catch (IOException e) {
+          LOG.error("Could not read the shared memory of " + peerAddress, e);
+          return;
+        }
+      }
+    }
+
+  }
+
+}
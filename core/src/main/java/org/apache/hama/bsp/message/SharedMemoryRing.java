@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+import sun.misc.Unsafe;
+
+/**
+ * A ring buffer in a memory-mapped file that is written by exactly one process
+ * and read by exactly one other process on the same host. <br/>
+ * The file starts with a header that contains the write and the read position,
+ * both are the total number of bytes that were ever written or read. The writer
+ * only advances the write position and the reader only advances the read
+ * position, so no locking between the processes is needed. Every record is an
+ * int length followed by the bytes, records wrap around the end of the ring.
+ * <br/>
+ * The writer stores the bytes of a record before the write position that
+ * publishes it, and the reader releases a record only after it loaded its
+ * bytes. {@link ByteBuffer} accesses don't order anything, so the positions
+ * are stored with ordered stores and loaded with volatile loads of
+ * {@link Unsafe} on the address of the mapping, which emit the barriers the
+ * processor needs. Rings are only supported if that is possible, see
+ * {@link #isSupported()}.
+ */
+final class SharedMemoryRing {
+
+  private static final int WRITE_POSITION = 0;
+  private static final int READ_POSITION = 8;
+  private static final int HEADER_SIZE = 64;
+  private static final int LENGTH_SIZE = 4;
+  // how long the writer waits for the reader to make room
+  private static final long WAIT_MILLIS = 1L;
+
+  // null if the positions can't be accessed in order
+  private static final Unsafe UNSAFE;
+  private static final long ADDRESS_OFFSET;
+
+  static {
+    Unsafe unsafe = null;
+    long offset = -1L;
+    try {
+      Field field = Unsafe.class.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = (Unsafe) field.get(null);
+      offset = unsafe.objectFieldOffset(Buffer.class
+          .getDeclaredField("address"));
+    } catch (Exception e) {
+      unsafe = null;
+    }
+    UNSAFE = unsafe;
+    ADDRESS_OFFSET = offset;
+  }
+
+  private final File file;
+  private final ByteBuffer buffer;
+  // the address of the mapping, where the header starts
+  private final long address;
+  private final int capacity;
+  private final byte[] lengthBytes = new byte[LENGTH_SIZE];
+
+  private SharedMemoryRing(File file, MappedByteBuffer buffer) {
+    this.file = file;
+    this.buffer = buffer;
+    this.address = UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+    this.capacity = buffer.capacity() - HEADER_SIZE;
+  }
+
+  /**
+   * @return true if the positions of a ring can be stored and loaded in
+   *         order with the accesses of the records.
+   */
+  static boolean isSupported() {
+    return UNSAFE != null;
+  }
+
+  /**
+   * Creates a new empty ring with the given capacity. The ring is initialized
+   * in a temporary file that is renamed afterwards, so a reader never sees a
+   * half initialized ring.
+   */
+  static SharedMemoryRing create(File file, int capacity) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    try {
+      raf.setLength(HEADER_SIZE + capacity);
+      // the mapping stays valid after the file has been closed
+      MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_WRITE, 0,
+          HEADER_SIZE + capacity);
+      SharedMemoryRing ring = new SharedMemoryRing(file, buffer);
+      ring.setPosition(WRITE_POSITION, 0L);
+      ring.setPosition(READ_POSITION, 0L);
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not rename " + tmp + " to " + file);
+      }
+      return ring;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Maps a ring that has been created by another process.
+   */
+  static SharedMemoryRing open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      return new SharedMemoryRing(file, raf.getChannel().map(
+          MapMode.READ_WRITE, 0, raf.length()));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * @return true if a record of the given length can ever fit into this ring.
+   */
+  boolean fits(int length) {
+    return LENGTH_SIZE + length <= capacity;
+  }
+
+  /**
+   * Appends a record to the ring and waits while the reader has not made
+   * enough room for it yet.
+   *
+   * @throws IOException if the ring was removed by the reader while waiting.
+   */
+  synchronized void write(byte[] data, int length) throws IOException {
+    if (!fits(length)) {
+      throw new IllegalArgumentException("Record of " + length
+          + " bytes does not fit into a ring of " + capacity + " bytes!");
+    }
+    long writePosition = getPosition(WRITE_POSITION);
+    // the reader has loaded the bytes before it released them
+    while (capacity - (writePosition - getPosition(READ_POSITION))
+        < LENGTH_SIZE + length) {
+      if (!file.exists()) {
+        throw new IOException("Ring " + file + " has been closed by the reader!");
+      }
+      try {
+        Thread.sleep(WAIT_MILLIS);
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while waiting for " + file);
+      }
+    }
+    lengthBytes[0] = (byte) (length >>> 24);
+    lengthBytes[1] = (byte) (length >>> 16);
+    lengthBytes[2] = (byte) (length >>> 8);
+    lengthBytes[3] = (byte) length;
+    put(writePosition, lengthBytes, LENGTH_SIZE);
+    put(writePosition + LENGTH_SIZE, data, length);
+    // publish the record only after its bytes have been written
+    setPosition(WRITE_POSITION, writePosition + LENGTH_SIZE + length);
+  }
+
+  /**
+   * @return the next record or null if the ring is empty.
+   */
+  synchronized byte[] read() {
+    long readPosition = getPosition(READ_POSITION);
+    // the bytes of the records before the write position can be loaded now
+    long writePosition = getPosition(WRITE_POSITION);
+    if (readPosition == writePosition) {
+      return null;
+    }
+    get(readPosition, lengthBytes, LENGTH_SIZE);
+    int length = ((lengthBytes[0] & 0xff) << 24)
+        | ((lengthBytes[1] & 0xff) << 16) | ((lengthBytes[2] & 0xff) << 8)
+        | (lengthBytes[3] & 0xff);
+    byte[] data = new byte[length];
+    get(readPosition + LENGTH_SIZE, data, length);
+    // release the record only after its bytes have been loaded
+    setPosition(READ_POSITION, readPosition + LENGTH_SIZE + length);
+    return data;
+  }
+
+  /**
+   * Loads a position, no access of the records that follows can be moved
+   * before it.
+   */
+  private long getPosition(int position) {
+    return UNSAFE.getLongVolatile(null, address + position);
+  }
+
+  /**
+   * Stores a position, no access of the records that precedes it can be moved
+   * after it.
+   */
+  private void setPosition(int position, long value) {
+    UNSAFE.putOrderedLong(null, address + position, value);
+  }
+
+  private void put(long position, byte[] data, int length) {
+    int index = (int) (position % capacity);
+    int first = Math.min(length, capacity - index);
+    ByteBuffer view = buffer.duplicate();
+    view.position(HEADER_SIZE + index);
+    view.put(data, 0, first);
+    if (first < length) {
+      view.position(HEADER_SIZE);
+      view.put(data, first, length - first);
+    }
+  }
+
+  private void get(long position, byte[] data, int length) {
+    int index = (int) (position % capacity);
+    int first = Math.min(length, capacity - index);
+    ByteBuffer view = buffer.duplicate();
+    view.position(HEADER_SIZE + index);
+    view.get(data, 0, first);
+    if (first < length) {
+      view.position(HEADER_SIZE);
+      view.get(data, first, length - first);
+    }
+  }
+
+}
@@ -19,20 +19,24 @@ package org.apache.hama.bsp.message;
 
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.PriorityQueue;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hama.bsp.TaskAttemptID;
 
 /**
- * Heap (Java's priority queue) based message queue implementation that supports
- * sorted receive and send.
+ * Message queue implementation that supports sorted receive and send. It is
+ * backed by a sorted {@link SpillingQueue}: messages are buffered serialized
+ * and sorted in runs, runs that exceed "hama.messenger.spilling.buffer.size"
+ * are spilled to local disk and all runs are merged when the queue is polled.
+ * So adding is cheap and the queue is not limited by the heap. <br/>
+ * All messages must be of the same class. Note that the iterator consumes the
+ * messages in ascending order.
  */
 public final class SortedMessageQueue<M extends WritableComparable<M>>
     implements MessageQueue<M> {
 
-  private final PriorityQueue<M> queue = new PriorityQueue<M>();
+  private final SpillingQueue<M> queue = new SpillingQueue<M>();
   private Configuration conf;
 
   @Override
@@ -57,10 +61,7 @@ public final class SortedMessageQueue<M extends WritableComparable<M>>
 
   @Override
   public void addAll(MessageQueue<M> otherqueue) {
-    M poll = null;
-    while ((poll = otherqueue.poll()) != null) {
-      queue.add(poll);
-    }
+    queue.addAll(otherqueue);
   }
 
   @Override
@@ -83,26 +84,27 @@ public final class SortedMessageQueue<M extends WritableComparable<M>>
     return queue.size();
   }
 
-  // empty, not needed to implement
-
   @Override
   public void init(Configuration conf, TaskAttemptID id) {
-
+    Configuration sortedConf = new Configuration(conf);
+    sortedConf.setBoolean(SpillingQueue.SORTED_KEY, true);
+    queue.setConf(sortedConf);
+    queue.init(sortedConf, id);
   }
 
   @Override
   public void close() {
-
+    queue.close();
   }
 
   @Override
   public void prepareRead() {
-
+    queue.prepareRead();
   }
 
   @Override
   public void prepareWrite() {
-
+    queue.prepareWrite();
   }
 
 }
@@ -0,0 +1,575 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hama.bsp.TaskAttemptID;
+
+/**
+ * A queue that keeps its messages serialized in memory until a configurable
+ * byte budget ("hama.messenger.spilling.buffer.size") is reached. After that
+ * the buffered messages are spilled as a run to a file on local disk, the
+ * directory is the same as for the {@link DiskQueue}. <br/>
+ * If "hama.messenger.spilling.sorted" is set to true, the messages must be
+ * {@link WritableComparable} of a single class. Every run is then sorted
+ * before it is spilled and the runs are merged on read, so {@link #poll()}
+ * returns the messages in ascending order. If there are more than
+ * "hama.messenger.spilling.merge.factor" runs, the oldest runs are merged into
+ * bigger runs first, so the final merge doesn't open too many files at once.
+ * Otherwise runs are read in the order they were spilled, so the queue stays
+ * FIFO. <br/>
+ * Note that the iterator consumes the messages, just like the one of the
+ * {@link DiskQueue}. The budget is per queue, so keep in mind that there is
+ * an outgoing queue for every peer when you are using this as
+ * "hama.messenger.queue.class".
+ */
+public final class SpillingQueue<M extends Writable> implements
+    MessageQueue<M> {
+
+  public static final String BUFFER_SIZE_KEY = "hama.messenger.spilling.buffer.size";
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024 * 1024;
+  public static final String SORTED_KEY = "hama.messenger.spilling.sorted";
+  public static final String IO_BUFFER_SIZE_KEY = "hama.messenger.spilling.io.buffer.size";
+  public static final int DEFAULT_IO_BUFFER_SIZE = 64 * 1024;
+  public static final String MERGE_FACTOR_KEY = "hama.messenger.spilling.merge.factor";
+  public static final int DEFAULT_MERGE_FACTOR = 64;
+
+  private static final Log LOG = LogFactory.getLog(SpillingQueue.class);
+
+  // short class index + int length
+  private static final int RECORD_HEADER_SIZE = 6;
+
+  private static final AtomicInteger ONGOING_SEQUENCE_NUMBER = new AtomicInteger();
+
+  // injected via reflection
+  private Configuration conf;
+  private int bufferSize = DEFAULT_BUFFER_SIZE;
+  private int ioBufferSize = DEFAULT_IO_BUFFER_SIZE;
+  private boolean sorted;
+  private int mergeFactor = DEFAULT_MERGE_FACTOR;
+  private RawComparator<M> comparator;
+
+  private File spillDir;
+  private int queueId;
+  private int spilledRuns = 0;
+
+  private final ArrayList<Class<M>> classes = new ArrayList<Class<M>>();
+  private final DataInputBuffer deserializationBuffer = new DataInputBuffer();
+
+  // messages that are still in memory, offsets point to their records
+  private final DataOutputBuffer buffer = new DataOutputBuffer();
+  private int[] offsets = new int[1024];
+  private int memoryCount = 0;
+  private int memoryRead = 0;
+  private boolean memorySorted = true;
+
+  // spilled runs in the order they were written
+  private final LinkedList<Run> runs = new LinkedList<Run>();
+  // runs that are currently merged, only used when sorted
+  private PriorityQueue<Run> mergeHeap;
+
+  private int size = 0;
+
+  @Override
+  public void init(Configuration conf, TaskAttemptID id) {
+    this.conf = conf;
+    this.bufferSize = conf.getInt(BUFFER_SIZE_KEY, DEFAULT_BUFFER_SIZE);
+    this.ioBufferSize = conf.getInt(IO_BUFFER_SIZE_KEY, DEFAULT_IO_BUFFER_SIZE);
+    this.sorted = conf.getBoolean(SORTED_KEY, false);
+    this.mergeFactor = Math.max(2,
+        conf.getInt(MERGE_FACTOR_KEY, DEFAULT_MERGE_FACTOR));
+    this.queueId = ONGOING_SEQUENCE_NUMBER.getAndIncrement();
+    this.spillDir = new File(DiskQueue.getQueueDir(conf, id,
+        conf.get(DiskQueue.DISK_QUEUE_PATH_KEY)).toUri().getPath());
+  }
+
+  @Override
+  public void close() {
+    clear();
+  }
+
+  @Override
+  public void prepareRead() {
+
+  }
+
+  @Override
+  public void prepareWrite() {
+
+  }
+
+  @Override
+  public void addAll(Collection<M> col) {
+    for (M item : col) {
+      add(item);
+    }
+  }
+
+  @Override
+  public void addAll(MessageQueue<M> otherqueue) {
+    M poll = null;
+    while ((poll = otherqueue.poll()) != null) {
+      add(poll);
+    }
+  }
+
+  @Override
+  public void add(M item) {
+    int start = buffer.getLength();
+    try {
+      buffer.writeShort(getClassIndex(item));
+      // placeholder for the length, patched after serialization
+      buffer.writeInt(0);
+      item.write(buffer);
+    } catch (IOException e) {
+      // we are writing into memory, this should never happen
+      throw new RuntimeException(e);
+    }
+    writeInt(buffer.getData(), start + 2, buffer.getLength() - start
+        - RECORD_HEADER_SIZE);
+
+    if (memoryCount == offsets.length) {
+      int[] newOffsets = new int[offsets.length * 2];
+      System.arraycopy(offsets, 0, newOffsets, 0, offsets.length);
+      offsets = newOffsets;
+    }
+    offsets[memoryCount++] = start;
+    memorySorted = false;
+    size++;
+
+    if (buffer.getLength() >= bufferSize) {
+      spill();
+    }
+  }
+
+  @Override
+  public void clear() {
+    for (Run run : runs) {
+      run.delete();
+    }
+    runs.clear();
+    mergeHeap = null;
+    resetMemory();
+    size = 0;
+  }
+
+  @Override
+  public M poll() {
+    if (size == 0) {
+      return null;
+    }
+    M item = sorted ? pollSorted() : pollFifo();
+    size--;
+    return item;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Iterator<M> iterator() {
+    return new Iterator<M>() {
+      @Override
+      public boolean hasNext() {
+        return size > 0;
+      }
+
+      @Override
+      public M next() {
+        if (size == 0) {
+          throw new NoSuchElementException();
+        }
+        return poll();
+      }
+
+      @Override
+      public void remove() {
+        // no-op, the message was already consumed by next()
+      }
+    };
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  /**
+   * @return the number of runs that are currently spilled to disk.
+   */
+  public int getNumSpilledRuns() {
+    return runs.size();
+  }
+
+  private M pollFifo() {
+    // spilled runs are always older than what is in memory
+    while (!runs.isEmpty()) {
+      Run run = runs.getFirst();
+      if (run.advance()) {
+        return deserialize(run.classIndex, run.record, 0, run.length);
+      }
+      run.delete();
+      runs.removeFirst();
+    }
+    return pollMemory();
+  }
+
+  private M pollSorted() {
+    if (mergeHeap == null) {
+      mergeRuns();
+      mergeHeap = newMergeHeap(runs.size());
+      for (Run run : new ArrayList<Run>(runs)) {
+        addToMerge(run);
+      }
+    }
+    if (!memorySorted) {
+      sortMemory();
+    }
+    Run head = mergeHeap.peek();
+    if (memoryRead < memoryCount) {
+      int offset = offsets[memoryRead];
+      if (head == null
+          || comparator.compare(buffer.getData(),
+              offset + RECORD_HEADER_SIZE, getRecordLength(offset),
+              head.record, 0, head.length) <= 0) {
+        return pollMemory();
+      }
+    }
+    mergeHeap.poll();
+    M item = deserialize(head.classIndex, head.record, 0, head.length);
+    addToMerge(head);
+    return item;
+  }
+
+  private PriorityQueue<Run> newMergeHeap(int capacity) {
+    return new PriorityQueue<Run>(Math.max(1, capacity), new Comparator<Run>() {
+      @Override
+      public int compare(Run o1, Run o2) {
+        return comparator.compare(o1.record, 0, o1.length, o2.record, 0,
+            o2.length);
+      }
+    });
+  }
+
+  /**
+   * Merges the oldest runs into a new run until there are at most
+   * mergeFactor runs left.
+   */
+  private void mergeRuns() {
+    while (runs.size() > mergeFactor) {
+      long start = System.currentTimeMillis();
+      PriorityQueue<Run> heap = newMergeHeap(mergeFactor);
+      int count = 0;
+      for (int i = 0; i < mergeFactor; i++) {
+        Run run = runs.removeFirst();
+        count += run.remaining;
+        if (run.advance()) {
+          heap.add(run);
+        } else {
+          run.delete();
+        }
+      }
+      File file = newSpillFile();
+      DataOutputStream out = null;
+      try {
+        out = openSpillFile(file);
+        Run head = null;
+        while ((head = heap.poll()) != null) {
+          out.writeShort(head.classIndex);
+          out.writeInt(head.length);
+          out.write(head.record, 0, head.length);
+          if (head.advance()) {
+            heap.add(head);
+          } else {
+            head.delete();
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Could not merge runs to " + file, e);
+      } finally {
+        closeSpillFile(out);
+      }
+      runs.add(new Run(file, count));
+      LOG.debug("Merged " + mergeFactor + " runs with " + count
+          + " messages to " + file + " in "
+          + (System.currentTimeMillis() - start) + "ms");
+    }
+  }
+
+  private void addToMerge(Run run) {
+    if (run.advance()) {
+      mergeHeap.add(run);
+    } else {
+      run.delete();
+      runs.remove(run);
+    }
+  }
+
+  private M pollMemory() {
+    int offset = offsets[memoryRead++];
+    M item = deserialize(readShort(buffer.getData(), offset), buffer.getData(),
+        offset + RECORD_HEADER_SIZE, getRecordLength(offset));
+    if (memoryRead == memoryCount) {
+      resetMemory();
+    }
+    return item;
+  }
+
+  /**
+   * Writes all unread messages that are in memory to a new run on disk.
+   */
+  private void spill() {
+    if (sorted && !memorySorted) {
+      sortMemory();
+    }
+    File file = newSpillFile();
+    long start = System.currentTimeMillis();
+    DataOutputStream out = null;
+    try {
+      out = openSpillFile(file);
+      byte[] data = buffer.getData();
+      if (!sorted && memoryRead == 0) {
+        // records are already in the right order
+        out.write(data, 0, buffer.getLength());
+      } else {
+        for (int i = memoryRead; i < memoryCount; i++) {
+          out.write(data, offsets[i], RECORD_HEADER_SIZE
+              + getRecordLength(offsets[i]));
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Could not spill to " + file, e);
+    } finally {
+      closeSpillFile(out);
+    }
+    Run run = new Run(file, memoryCount - memoryRead);
+    runs.add(run);
+    if (mergeHeap != null) {
+      // the merge has already started
+      addToMerge(run);
+    }
+    LOG.debug("Spilled " + run.remaining + " messages to " + file + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+    resetMemory();
+  }
+
+  private File newSpillFile() {
+    if (!spillDir.exists() && !spillDir.mkdirs()) {
+      throw new RuntimeException("Could not create spill directory "
+          + spillDir);
+    }
+    return new File(spillDir, queueId + "_spill_" + (spilledRuns++) + ".bin");
+  }
+
+  private DataOutputStream openSpillFile(File file) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+        file), ioBufferSize));
+  }
+
+  private static void closeSpillFile(DataOutputStream out) {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.error(e);
+      }
+    }
+  }
+
+  private void sortMemory() {
+    if (comparator == null) {
+      comparator = getComparator();
+    }
+    final byte[] data = buffer.getData();
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        return comparator.compare(data, offsets[i] + RECORD_HEADER_SIZE,
+            getRecordLength(offsets[i]), data,
+            offsets[j] + RECORD_HEADER_SIZE, getRecordLength(offsets[j]));
+      }
+
+      @Override
+      public void swap(int i, int j) {
+        int tmp = offsets[i];
+        offsets[i] = offsets[j];
+        offsets[j] = tmp;
+      }
+    }, memoryRead, memoryCount);
+    memorySorted = true;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private RawComparator<M> getComparator() {
+    if (classes.size() != 1
+        || !WritableComparable.class.isAssignableFrom(classes.get(0))) {
+      throw new IllegalStateException(
+          "Sorting needs messages of a single WritableComparable class, but got "
+              + classes);
+    }
+    return (RawComparator<M>) WritableComparator.get(classes.get(0)
+        .asSubclass(WritableComparable.class));
+  }
+
+  private void resetMemory() {
+    buffer.reset();
+    memoryCount = 0;
+    memoryRead = 0;
+    memorySorted = true;
+  }
+
+  private short getClassIndex(M item) {
+    @SuppressWarnings("unchecked")
+    Class<M> clazz = (Class<M>) item.getClass();
+    for (int i = 0; i < classes.size(); i++) {
+      if (classes.get(i) == clazz) {
+        return (short) i;
+      }
+    }
+    if (classes.size() == Short.MAX_VALUE) {
+      throw new IllegalStateException("Too many distinct message classes!");
+    }
+    classes.add(clazz);
+    return (short) (classes.size() - 1);
+  }
+
+  private M deserialize(short classIndex, byte[] data, int start, int length) {
+    deserializationBuffer.reset(data, start, length);
+    M item = ReflectionUtils.newInstance(classes.get(classIndex), conf);
+    try {
+      item.readFields(deserializationBuffer);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return item;
+  }
+
+  private int getRecordLength(int offset) {
+    return WritableComparator.readInt(buffer.getData(), offset + 2);
+  }
+
+  private static short readShort(byte[] data, int offset) {
+    return (short) (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+  }
+
+  private static void writeInt(byte[] data, int offset, int value) {
+    data[offset] = (byte) (value >>> 24);
+    data[offset + 1] = (byte) (value >>> 16);
+    data[offset + 2] = (byte) (value >>> 8);
+    data[offset + 3] = (byte) value;
+  }
+
+  /**
+   * A spilled run on disk. It is read record by record, the current record is
+   * kept in a reusable buffer.
+   */
+  private final class Run {
+
+    private final File file;
+    private int remaining;
+    private DataInputStream in;
+
+    private short classIndex;
+    private byte[] record = new byte[64];
+    private int length;
+
+    Run(File file, int count) {
+      this.file = file;
+      this.remaining = count;
+    }
+
+    /**
+     * Reads the next record of this run.
+     *
+     * @return false if the run has no more records.
+     */
+    boolean advance() {
+      if (remaining == 0) {
+        return false;
+      }
+      try {
+        if (in == null) {
+          in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+              file), ioBufferSize));
+        }
+        classIndex = in.readShort();
+        length = in.readInt();
+        if (record.length < length) {
+          record = new byte[Math.max(length, record.length * 2)];
+        }
+        in.readFully(record, 0, length);
+      } catch (IOException e) {
+        throw new RuntimeException("Could not read spilled messages from "
+            + file, e);
+      }
+      remaining--;
+      return true;
+    }
+
+    void delete() {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOG.error(e);
+        }
+        in = null;
+      }
+      if (!file.delete()) {
+        LOG.warn("Spill file " + file + " couldn't be deleted");
+      }
+    }
+
+  }
+
+}
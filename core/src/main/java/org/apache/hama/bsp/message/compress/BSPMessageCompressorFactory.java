@@ -44,4 +44,20 @@ public class BSPMessageCompressorFactory<M extends Writable> {
     }
     return null;
   }
+
+  /**
+   * Returns the policy that decides which bundles are worth compressing with
+   * the given compressor.
+   * 
+   * @param conf
+   * @param compressor
+   * @return the policy or null if the compressor is null.
+   */
+  public CompressionPolicy<M> getCompressionPolicy(Configuration conf,
+      BSPMessageCompressor<M> compressor) {
+    if (compressor == null) {
+      return null;
+    }
+    return new CompressionPolicy<M>(compressor, conf);
+  }
 }
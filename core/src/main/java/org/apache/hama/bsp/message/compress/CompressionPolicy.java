@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message.compress;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.BSPMessageBundle;
+import org.apache.hama.util.CompressionUtil;
+
+/**
+ * Decides per bundle whether compressing it is worth the time. <br/>
+ * Bundles smaller than "hama.messenger.compression.threshold" bytes are never
+ * compressed. For larger bundles a prefix of "hama.messenger.compression.
+ * sample.size" bytes is deflated first to estimate how well the bundle
+ * compresses. If the estimate or the real compression doesn't reach
+ * "hama.messenger.compression.max.ratio", the bundles of the same message
+ * classes to the same peer are sent uncompressed for a while. The pause doubles
+ * with every further failure, so data that doesn't compress costs almost
+ * nothing, while data that becomes compressible again is picked up later.
+ */
+public final class CompressionPolicy<M extends Writable> {
+
+  public static final String THRESHOLD = "hama.messenger.compression.threshold";
+  public static final String SAMPLE_SIZE = "hama.messenger.compression.sample.size";
+  public static final String MAX_RATIO = "hama.messenger.compression.max.ratio";
+
+  public static final int DEFAULT_THRESHOLD = 1024;
+  public static final int DEFAULT_SAMPLE_SIZE = 4096;
+  public static final float DEFAULT_MAX_RATIO = 0.9f;
+
+  // the most bundles that are skipped after failed attempts
+  private static final int MAX_BACKOFF = 64;
+
+  private final BSPMessageCompressor<M> compressor;
+  private final int threshold;
+  private final int sampleSize;
+  private final float maxRatio;
+
+  private final HashMap<String, Outcome> outcomes = new HashMap<String, Outcome>();
+  private final Deflater sampler = new Deflater(Deflater.BEST_SPEED);
+  private final byte[] sample;
+  private final byte[] sampleOutput;
+
+  CompressionPolicy(BSPMessageCompressor<M> compressor, Configuration conf) {
+    this.compressor = compressor;
+    this.threshold = conf.getInt(THRESHOLD, DEFAULT_THRESHOLD);
+    this.sampleSize = conf.getInt(SAMPLE_SIZE, DEFAULT_SAMPLE_SIZE);
+    this.maxRatio = conf.getFloat(MAX_RATIO, DEFAULT_MAX_RATIO);
+    this.sample = new byte[sampleSize];
+    // deflate never grows the data by more than a few bytes per block
+    this.sampleOutput = new byte[sampleSize + sampleSize / 8 + 64];
+  }
+
+  /**
+   * Compresses the bundle if that is likely to pay off.
+   * 
+   * @param addr the peer the bundle is sent to.
+   * @param bundle
+   * @return the compressed bundle or null if the bundle should be sent as it
+   *         is.
+   * @throws IOException
+   */
+  public BSPCompressedBundle compress(InetSocketAddress addr,
+      BSPMessageBundle<M> bundle) throws IOException {
+    if (bundle.getLength() < threshold) {
+      return null;
+    }
+    Outcome outcome = getOutcome(addr + "/" + bundle.getClassNames());
+    synchronized (outcome) {
+      if (outcome.skip > 0) {
+        outcome.skip--;
+        return null;
+      }
+    }
+    // only sample if this saves a considerable part of the work
+    if (bundle.getLength() > 2 * sampleSize
+        && estimateRatio(bundle) > maxRatio) {
+      outcome.failed();
+      return null;
+    }
+    BSPCompressedBundle compMsgBundle = compressor.compressBundle(bundle);
+    if (compMsgBundle == null
+        || CompressionUtil.getCompressionRatio(compMsgBundle, bundle) > maxRatio) {
+      outcome.failed();
+      return null;
+    }
+    outcome.succeeded();
+    return compMsgBundle;
+  }
+
+  private Outcome getOutcome(String key) {
+    // transfers to different peers may run concurrently
+    synchronized (outcomes) {
+      Outcome outcome = outcomes.get(key);
+      if (outcome == null) {
+        outcome = new Outcome();
+        outcomes.put(key, outcome);
+      }
+      return outcome;
+    }
+  }
+
+  /**
+   * Deflates the first bytes of the serialized bundle.
+   * 
+   * @return the ratio of the compressed to the uncompressed prefix.
+   */
+  private synchronized float estimateRatio(BSPMessageBundle<M> bundle)
+      throws IOException {
+    PrefixOutputStream prefix = new PrefixOutputStream();
+    bundle.write(new DataOutputStream(prefix));
+    sampler.reset();
+    sampler.setInput(sample, 0, prefix.length);
+    sampler.finish();
+    int compressed = 0;
+    while (!sampler.finished()) {
+      compressed += sampler.deflate(sampleOutput);
+    }
+    return (float) compressed / prefix.length;
+  }
+
+  /**
+   * Remembers the recent failures for a peer and a set of message classes.
+   */
+  private static final class Outcome {
+
+    private int failures = 0;
+    // the number of bundles that are sent uncompressed before trying again
+    private int skip = 0;
+
+    synchronized void failed() {
+      skip = Math.min(1 << failures, MAX_BACKOFF);
+      if (skip < MAX_BACKOFF) {
+        failures++;
+      }
+    }
+
+    synchronized void succeeded() {
+      failures = 0;
+    }
+
+  }
+
+  /**
+   * Keeps the first bytes written to it and drops the rest.
+   */
+  private final class PrefixOutputStream extends OutputStream {
+
+    private int length = 0;
+
+    @Override
+    public void write(int b) {
+      if (length < sample.length) {
+        sample[length++] = (byte) b;
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      int n = Math.min(len, sample.length - length);
+      System.arraycopy(b, off, sample, length, n);
+      length += n;
+    }
+
+  }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.BSPMessageBundle;
+
+/**
+ * Compresses bundles with the JDK's deflate at its fastest level. It is
+ * available without native libraries and trades some ratio for a speed that
+ * pays off on fast networks.
+ */
+public class DeflateCompressor<M extends Writable> implements
+    BSPMessageCompressor<M> {
+
+  @Override
+  public BSPCompressedBundle compressBundle(BSPMessageBundle<M> bundle) {
+    BSPCompressedBundle compMsgBundle = null;
+    ByteArrayOutputStream bos = null;
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    DataOutputStream dos = null;
+
+    try {
+      bos = new ByteArrayOutputStream(bundle.getLength() / 2);
+      dos = new DataOutputStream(new DeflaterOutputStream(bos, deflater));
+
+      bundle.write(dos);
+      dos.close(); // Flush the stream as no more data will be sent.
+
+      byte[] data = bos.toByteArray();
+      compMsgBundle = new BSPCompressedBundle(data);
+
+    } catch (IOException ioe) {
+      LOG.error("Unable to compress", ioe);
+    } finally {
+      // a deflater that was passed in is not released by the stream
+      deflater.end();
+    }
+    return compMsgBundle;
+  }
+
+  /**
+   * Decompresses a BSPCompressedBundle and returns the corresponding
+   * BSPMessageBundle.
+   * 
+   * @param compMsgBundle
+   * @return
+   */
+  @Override
+  public BSPMessageBundle<M> decompressBundle(BSPCompressedBundle compMsgBundle) {
+    ByteArrayInputStream bis = null;
+    DataInputStream dis = null;
+    BSPMessageBundle<M> bundle = new BSPMessageBundle<M>();
+
+    try {
+      byte[] data = compMsgBundle.getData();
+      bis = new ByteArrayInputStream(data);
+      dis = new DataInputStream(new InflaterInputStream(bis));
+
+      bundle.readFields(dis);
+
+    } catch (IOException ioe) {
+      LOG.error("Unable to decompress.", ioe);
+    } finally {
+      try {
+        dis.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to close decompression streams.", e);
+      }
+    }
+
+    return bundle;
+  }
+
+}
@@ -0,0 +1,205 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message.type;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A batch of int tags with a double data each, kept in two parallel primitive
+ * arrays. Appending to a batch doesn't allocate once the arrays are large
+ * enough and the batch is serialized as two blocks, so sending millions of
+ * values costs a fraction of the memory and CPU of one
+ * {@link IntegerDoubleMessage} per value. <br/>
+ * Use {@link #getTag(int)} and {@link #getData(int)} to read the batch,
+ * {@link #getTag()} and {@link #getData()} return copies of the arrays.
+ */
+public class IntegerDoubleArrayMessage extends BSPMessage {
+
+  private static final int DEFAULT_CAPACITY = 16;
+  // the arrays are converted to bytes in chunks of this size
+  private static final int CHUNK_SIZE = 8192;
+
+  // both arrays always have the same length
+  private int[] tags;
+  private double[] data;
+  private int size = 0;
+
+  public IntegerDoubleArrayMessage() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public IntegerDoubleArrayMessage(int capacity) {
+    super();
+    this.tags = new int[capacity];
+    this.data = new double[capacity];
+  }
+
+  /**
+   * Appends a value to this batch.
+   */
+  public void add(int tag, double value) {
+    if (size == tags.length) {
+      ensureCapacity(size + 1);
+    }
+    tags[size] = tag;
+    data[size] = value;
+    size++;
+  }
+
+  /**
+   * Appends all values of the other batch to this batch.
+   */
+  public void addAll(IntegerDoubleArrayMessage other) {
+    ensureCapacity(size + other.size);
+    System.arraycopy(other.tags, 0, tags, size, other.size);
+    System.arraycopy(other.data, 0, data, size, other.size);
+    size += other.size;
+  }
+
+  public int getTag(int index) {
+    checkIndex(index);
+    return tags[index];
+  }
+
+  public double getData(int index) {
+    checkIndex(index);
+    return data[index];
+  }
+
+  /**
+   * @return the number of values in this batch.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Removes all values, but keeps the arrays for reuse.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(size);
+    byte[] chunk = new byte[Math.min(size * 8, CHUNK_SIZE)];
+    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+    for (int i = 0; i < size; i += chunk.length / 4) {
+      int n = Math.min(size - i, chunk.length / 4);
+      buffer.clear();
+      buffer.asIntBuffer().put(tags, i, n);
+      out.write(chunk, 0, n * 4);
+    }
+    for (int i = 0; i < size; i += chunk.length / 8) {
+      int n = Math.min(size - i, chunk.length / 8);
+      buffer.clear();
+      buffer.asDoubleBuffer().put(data, i, n);
+      out.write(chunk, 0, n * 8);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    size = in.readInt();
+    if (tags.length < size) {
+      setCapacity(size);
+    }
+    byte[] chunk = new byte[Math.min(size * 8, CHUNK_SIZE)];
+    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+    for (int i = 0; i < size; i += chunk.length / 4) {
+      int n = Math.min(size - i, chunk.length / 4);
+      in.readFully(chunk, 0, n * 4);
+      buffer.clear();
+      buffer.asIntBuffer().get(tags, i, n);
+    }
+    for (int i = 0; i < size; i += chunk.length / 8) {
+      int n = Math.min(size - i, chunk.length / 8);
+      in.readFully(chunk, 0, n * 8);
+      buffer.clear();
+      buffer.asDoubleBuffer().get(data, i, n);
+    }
+  }
+
+  @Override
+  public int[] getTag() {
+    return Arrays.copyOf(tags, size);
+  }
+
+  @Override
+  public double[] getData() {
+    return Arrays.copyOf(data, size);
+  }
+
+  /**
+   * Replaces the tags of this batch. The size of the batch becomes the length
+   * of the tags, the data of values beyond the old size is 0.
+   */
+  @Override
+  public void setTag(Object tag) {
+    int[] newTags = (int[]) tag;
+    if (data.length < newTags.length) {
+      setCapacity(newTags.length);
+    }
+    System.arraycopy(newTags, 0, tags, 0, newTags.length);
+    if (size < newTags.length) {
+      Arrays.fill(data, size, newTags.length, 0d);
+    }
+    size = newTags.length;
+  }
+
+  /**
+   * Replaces the data of this batch. The size of the batch becomes the length
+   * of the data, the tag of values beyond the old size is 0.
+   */
+  @Override
+  public void setData(Object data) {
+    double[] newData = (double[]) data;
+    if (tags.length < newData.length) {
+      setCapacity(newData.length);
+    }
+    System.arraycopy(newData, 0, this.data, 0, newData.length);
+    if (size < newData.length) {
+      Arrays.fill(tags, size, newData.length, 0);
+    }
+    size = newData.length;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (tags.length < capacity) {
+      setCapacity(Math.max(capacity, tags.length * 2));
+    }
+  }
+
+  private void setCapacity(int capacity) {
+    tags = Arrays.copyOf(tags, capacity);
+    data = Arrays.copyOf(data, capacity);
+  }
+
+  private void checkIndex(int index) {
+    if (index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+          + size);
+    }
+  }
+
+}
@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hama.bsp.Combiner;
+
+/**
+ * Serializes the values that tasks piggyback on a barrier and reduces them.
+ * All values of a reduction have the class of the value of the local task.
+ * Tasks that did not call allReduce have no value, their payload is null.
+ */
+public final class BarrierPayload {
+
+  // the kinds of data a single task hands to all others
+  private static final byte REDUCED = 0;
+  private static final byte PACKED = 1;
+
+  private BarrierPayload() {
+  }
+
+  public static byte[] toBytes(Writable value) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    value.write(out);
+    return Arrays.copyOf(out.getData(), out.getLength());
+  }
+
+  /**
+   * @param value the value of this task, a new instance of its class is
+   *          filled with the given bytes.
+   */
+  @SuppressWarnings("unchecked")
+  public static <W extends Writable> W fromBytes(W value, byte[] bytes)
+      throws IOException {
+    W result = (W) ReflectionUtils.newInstance(value.getClass(), null);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(bytes, bytes.length);
+    result.readFields(in);
+    return result;
+  }
+
+  /**
+   * Combines the serialized values of all tasks.
+   * 
+   * @param value the value of this task.
+   * @param payloads the serialized values ordered by task id.
+   */
+  public static <W extends Writable> W reduce(W value,
+      Iterable<byte[]> payloads, Combiner<W> combiner) throws IOException {
+    List<W> values = new ArrayList<W>();
+    for (byte[] payload : payloads) {
+      if (payload != null) {
+        values.add(fromBytes(value, payload));
+      }
+    }
+    return combiner.combine(values);
+  }
+
+  /**
+   * Serializes the reduced value for the tasks that did not reduce on their
+   * own.
+   */
+  public static byte[] toReduced(Writable reduced) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.writeByte(REDUCED);
+    reduced.write(out);
+    return Arrays.copyOf(out.getData(), out.getLength());
+  }
+
+  /**
+   * Packs the serialized values of all tasks, so a task that has no value
+   * itself, and therefore can't reduce them, can still hand them to the
+   * others.
+   * 
+   * @return the packed values or null if no task has a value.
+   */
+  public static byte[] toPacked(Iterable<byte[]> payloads) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.writeByte(PACKED);
+    boolean empty = true;
+    for (byte[] payload : payloads) {
+      if (payload != null) {
+        out.writeInt(payload.length);
+        out.write(payload);
+        empty = false;
+      }
+    }
+    return empty ? null : Arrays.copyOf(out.getData(), out.getLength());
+  }
+
+  /**
+   * Reads the data written by {@link #toReduced(Writable)} or
+   * {@link #toPacked(Iterable)} and reduces the packed values if necessary.
+   * 
+   * @param value the value of this task.
+   * @param data the data, null if no task has a value.
+   */
+  @SuppressWarnings("unchecked")
+  public static <W extends Writable> W fromReducedOrPacked(W value,
+      byte[] data, Combiner<W> combiner) throws IOException {
+    if (data == null) {
+      throw new IOException("No value of the reduction has been stored!");
+    }
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data, data.length);
+    if (in.readByte() == REDUCED) {
+      W result = (W) ReflectionUtils.newInstance(value.getClass(), null);
+      result.readFields(in);
+      return result;
+    }
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    while (in.getPosition() < data.length) {
+      byte[] payload = new byte[in.readInt()];
+      in.readFully(payload);
+      payloads.add(payload);
+    }
+    return reduce(value, payloads, combiner);
+  }
+
+}
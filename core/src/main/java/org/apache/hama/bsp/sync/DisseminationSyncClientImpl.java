@@ -0,0 +1,341 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.sync;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hama.bsp.BSPJobID;
+import org.apache.hama.bsp.Combiner;
+import org.apache.hama.bsp.TaskAttemptID;
+import org.apache.hama.util.BSPNetUtils;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+
+/**
+ * A sync client that runs a dissemination barrier directly between the peers.
+ * In round k every peer signals the peer 2^k positions after it and waits for
+ * the signal of the peer 2^k positions before it, so a barrier takes
+ * ceil(log2 N) rounds without any central coordinator. <br/>
+ * Only the registration and the peer names go through the client configured
+ * in "hama.sync.dissemination.registry.class", which is ZooKeeper by default.
+ * Every peer listens for the signals on its peer port plus
+ * "hama.sync.dissemination.port.offset". <br/>
+ * Values piggybacked on a barrier are gathered along the same signals: every
+ * signal carries all values its sender knows of, which doubles each round.
+ */
+public class DisseminationSyncClientImpl implements SyncClient {
+
+  private static final Log LOG = LogFactory
+      .getLog(DisseminationSyncClientImpl.class);
+
+  public static final String REGISTRY_CLASS = "hama.sync.dissemination.registry.class";
+  public static final String PORT_OFFSET = "hama.sync.dissemination.port.offset";
+  public static final int DEFAULT_PORT_OFFSET = 1000;
+
+  // how long we try to reach a peer that has not bound its port yet
+  private static final long CONNECT_TIMEOUT_MS = 60000L;
+  private static final long CONNECT_RETRY_MS = 100L;
+
+  // the signals received so far with their values by peer index, they may
+  // arrive before we wait for them
+  private final HashMap<Long, TreeMap<Integer, byte[]>> signals = new HashMap<Long, TreeMap<Integer, byte[]>>();
+  private final HashMap<String, Channel> connections = new HashMap<String, Channel>();
+  private final ChannelGroup channels = new DefaultChannelGroup(
+      DisseminationSyncClientImpl.class.getSimpleName());
+
+  private SyncClient registry;
+  private int portOffset;
+  private int maxFrameSize;
+  private ServerBootstrap server;
+  private ClientBootstrap client;
+  private String peerName;
+  private TaskAttemptID taskId;
+  // the position of this peer in the peer names, lazily initialized
+  private int peerIndex = -1;
+
+  @Override
+  public void init(Configuration conf, BSPJobID jobId, TaskAttemptID taskId)
+      throws Exception {
+    this.taskId = taskId;
+    registry = (SyncClient) ReflectionUtils.newInstance(conf.getClass(
+        REGISTRY_CLASS, ZooKeeperSyncClientImpl.class), conf);
+    registry.init(conf, jobId, taskId);
+    portOffset = conf.getInt(PORT_OFFSET, DEFAULT_PORT_OFFSET);
+    maxFrameSize = conf.getInt(NettySyncServerImpl.MAX_FRAME_SIZE,
+        NettySyncServerImpl.DEFAULT_MAX_FRAME_SIZE);
+
+    client = new ClientBootstrap(new NioClientSocketChannelFactory(
+        Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+    client.setOption("tcpNoDelay", true);
+    client.setOption("keepAlive", true);
+    client.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        // signals only flow towards the server side
+        return Channels.pipeline();
+      }
+    });
+  }
+
+  @Override
+  public void register(BSPJobID jobId, TaskAttemptID taskId,
+      String hostAddress, long port) {
+    peerName = hostAddress + ":" + port;
+    server = new ServerBootstrap(new NioServerSocketChannelFactory(
+        Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+    server.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("decoder", new NettySyncServerImpl.RequestDecoder(
+            maxFrameSize));
+        pipeline.addLast("handler", new SignalHandler());
+        return pipeline;
+      }
+    });
+    server.setOption("child.tcpNoDelay", true);
+    server.setOption("child.keepAlive", true);
+    // bind before registering, so the other peers can reach us right away
+    channels.add(server.bind(new InetSocketAddress(hostAddress, (int) port
+        + portOffset)));
+    registry.register(jobId, taskId, hostAddress, port);
+  }
+
+  @Override
+  public String[] getAllPeerNames(TaskAttemptID taskId) {
+    return registry.getAllPeerNames(taskId);
+  }
+
+  @Override
+  public void enterBarrier(BSPJobID jobId, TaskAttemptID taskId, long superstep)
+      throws SyncException {
+    barrier(superstep * 2, null, null);
+  }
+
+  @Override
+  public <W extends Writable> W enterBarrier(BSPJobID jobId,
+      TaskAttemptID taskId, long superstep, W value, Combiner<W> combiner)
+      throws SyncException {
+    return barrier(superstep * 2, value, combiner);
+  }
+
+  @Override
+  public void leaveBarrier(BSPJobID jobId, TaskAttemptID taskId, long superstep)
+      throws SyncException {
+    barrier(superstep * 2 + 1, null, null);
+  }
+
+  private <W extends Writable> W barrier(long barrier, W value,
+      Combiner<W> combiner) throws SyncException {
+    String[] peers = getAllPeerNames(taskId);
+    int numPeers = peers.length;
+    int self = getPeerIndex(peers);
+    try {
+      TreeMap<Integer, byte[]> payloads = new TreeMap<Integer, byte[]>();
+      if (value != null) {
+        payloads.put(self, BarrierPayload.toBytes(value));
+      }
+      int round = 0;
+      for (long distance = 1; distance < numPeers; distance <<= 1) {
+        signal(peers[(int) ((self + distance) % numPeers)], barrier, round,
+            payloads);
+        payloads.putAll(awaitSignal(barrier, round));
+        round++;
+      }
+      // after the last round every peer knows the values of all peers
+      return value == null ? null : BarrierPayload.reduce(value, payloads
+          .values(), combiner);
+    } catch (IOException e) {
+      throw new SyncException(e.toString());
+    }
+  }
+
+  private int getPeerIndex(String[] peers) throws SyncException {
+    if (peerIndex < 0) {
+      for (int i = 0; i < peers.length; i++) {
+        if (peers[i].equals(peerName)) {
+          peerIndex = i;
+          break;
+        }
+      }
+      if (peerIndex < 0) {
+        throw new SyncException(peerName + " is not registered!");
+      }
+    }
+    return peerIndex;
+  }
+
+  private static Long getKey(long barrier, int round) {
+    // there are never more than 63 rounds
+    return Long.valueOf((barrier << 6) | round);
+  }
+
+  private void signal(String target, long barrier, int round,
+      TreeMap<Integer, byte[]> payloads) throws IOException {
+    ChannelBuffer frame = NettySyncServerImpl.newFrame();
+    frame.writeLong(barrier);
+    frame.writeInt(round);
+    frame.writeInt(payloads.size());
+    for (Entry<Integer, byte[]> entry : payloads.entrySet()) {
+      frame.writeInt(entry.getKey());
+      frame.writeInt(entry.getValue().length);
+      frame.writeBytes(entry.getValue());
+    }
+    NettySyncServerImpl.write(getConnection(target), frame);
+  }
+
+  /**
+   * @return the values that came with the signal.
+   */
+  private TreeMap<Integer, byte[]> awaitSignal(long barrier, int round)
+      throws IOException {
+    Long key = getKey(barrier, round);
+    synchronized (signals) {
+      TreeMap<Integer, byte[]> payloads = null;
+      while ((payloads = signals.remove(key)) == null) {
+        try {
+          signals.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting in the barrier!");
+        }
+      }
+      return payloads;
+    }
+  }
+
+  private Channel getConnection(String target) throws IOException {
+    Channel channel = connections.get(target);
+    if (channel != null && channel.isConnected()) {
+      return channel;
+    }
+    InetSocketAddress peerAddress = BSPNetUtils.getAddress(target);
+    InetSocketAddress address = new InetSocketAddress(
+        peerAddress.getHostName(), peerAddress.getPort() + portOffset);
+    long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+    while (true) {
+      ChannelFuture future = client.connect(address).awaitUninterruptibly();
+      if (future.isSuccess()) {
+        channel = future.getChannel();
+        channels.add(channel);
+        connections.put(target, channel);
+        return channel;
+      }
+      // the peer might not have bound its port yet
+      if (System.currentTimeMillis() > deadline) {
+        IOException e = new IOException("Could not connect to " + address);
+        e.initCause(future.getCause());
+        throw e;
+      }
+      try {
+        Thread.sleep(CONNECT_RETRY_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while connecting to " + address);
+      }
+    }
+  }
+
+  @Override
+  public void deregisterFromBarrier(BSPJobID jobId, TaskAttemptID taskId,
+      String hostAddress, long port) {
+    registry.deregisterFromBarrier(jobId, taskId, hostAddress, port);
+  }
+
+  @Override
+  public void stopServer() {
+    registry.stopServer();
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    channels.close().awaitUninterruptibly();
+    if (client != null) {
+      client.releaseExternalResources();
+    }
+    if (server != null) {
+      server.releaseExternalResources();
+    }
+    registry.close();
+  }
+
+  private final class SignalHandler extends SimpleChannelUpstreamHandler {
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e)
+        throws Exception {
+      channels.add(e.getChannel());
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+        throws Exception {
+      DataInput in = new ChannelBufferInputStream((ChannelBuffer) e
+          .getMessage());
+      Long key = getKey(in.readLong(), in.readInt());
+      TreeMap<Integer, byte[]> payloads = new TreeMap<Integer, byte[]>();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        int index = in.readInt();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        payloads.put(index, payload);
+      }
+      synchronized (signals) {
+        signals.put(key, payloads);
+        signals.notifyAll();
+      }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e)
+        throws Exception {
+      LOG.error("Failed to receive a barrier signal!", e.getCause());
+      e.getChannel().close();
+    }
+
+  }
+
+}
@@ -0,0 +1,288 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.sync;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.BSPJobID;
+import org.apache.hama.bsp.Combiner;
+import org.apache.hama.bsp.TaskAttemptID;
+import org.apache.hama.util.BSPNetUtils;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+
+/**
+ * Client of the {@link NettySyncServerImpl}. Every barrier costs a single
+ * request and a single release over a persistent connection to the server.
+ */
+public class NettySyncClientImpl implements SyncClient {
+
+  private static final Log LOG = LogFactory.getLog(NettySyncClientImpl.class);
+
+  private final LinkedBlockingQueue<Object> responses = new LinkedBlockingQueue<Object>();
+
+  private ClientBootstrap client;
+  private Channel channel;
+  private String jobId;
+  private int numBSPTasks;
+  // allPeers is lazily initialized
+  private String[] allPeers;
+  private int maxFrameSize;
+
+  @Override
+  public void init(Configuration conf, BSPJobID jobId, TaskAttemptID taskId)
+      throws Exception {
+    this.jobId = jobId.toString();
+    numBSPTasks = conf.getInt("bsp.peers.num", 1);
+    maxFrameSize = conf.getInt(NettySyncServerImpl.MAX_FRAME_SIZE,
+        NettySyncServerImpl.DEFAULT_MAX_FRAME_SIZE);
+    String serverAddress = conf.get(NettySyncServerImpl.SERVER_ADDRESS);
+    if (serverAddress == null) {
+      throw new IllegalArgumentException(NettySyncServerImpl.SERVER_ADDRESS
+          + " is not set!");
+    }
+    InetSocketAddress address = BSPNetUtils.getAddress(serverAddress);
+
+    client = new ClientBootstrap(new NioClientSocketChannelFactory(
+        Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+    client.setOption("tcpNoDelay", true);
+    client.setOption("keepAlive", true);
+    client.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("decoder", new NettySyncServerImpl.RequestDecoder(
+            maxFrameSize));
+        pipeline.addLast("handler", new ResponseHandler());
+        return pipeline;
+      }
+    });
+    ChannelFuture future = client.connect(address).awaitUninterruptibly();
+    if (!future.isSuccess()) {
+      IOException e = new IOException("Could not connect to the sync server at "
+          + address);
+      e.initCause(future.getCause());
+      throw e;
+    }
+    channel = future.getChannel();
+    LOG.info("Connected to the sync server at " + address);
+  }
+
+  @Override
+  public void enterBarrier(BSPJobID jobId, TaskAttemptID taskId, long superstep)
+      throws SyncException {
+    barrier(NettySyncServerImpl.ENTER, taskId, superstep, null, null);
+  }
+
+  /**
+   * The server hands the values of all tasks out with the release, every task
+   * reduces them on its own. The server can't reduce them, since it has
+   * neither the classes of the values nor the combiners of the tasks, so a
+   * release carries all values to every task and the server sends a number of
+   * bytes quadratic in the number of tasks. Keep the values small, or use the
+   * ZooKeeper client for many tasks, which stores the reduced value once.
+   */
+  @Override
+  public <W extends Writable> W enterBarrier(BSPJobID jobId,
+      TaskAttemptID taskId, long superstep, W value, Combiner<W> combiner)
+      throws SyncException {
+    return barrier(NettySyncServerImpl.ENTER, taskId, superstep, value,
+        combiner);
+  }
+
+  @Override
+  public void leaveBarrier(BSPJobID jobId, TaskAttemptID taskId, long superstep)
+      throws SyncException {
+    barrier(NettySyncServerImpl.LEAVE, taskId, superstep, null, null);
+  }
+
+  private <W extends Writable> W barrier(byte type, TaskAttemptID taskId,
+      long superstep, W value, Combiner<W> combiner) throws SyncException {
+    try {
+      ChannelBuffer frame = newRequest(type);
+      DataOutput out = NettySyncServerImpl.getOutput(frame);
+      out.writeLong(superstep);
+      out.writeBoolean(value != null);
+      if (value != null) {
+        byte[] payload = BarrierPayload.toBytes(value);
+        out.writeInt(taskId.getTaskID().getId());
+        out.writeInt(payload.length);
+        out.write(payload);
+      }
+      DataInput in = call(frame);
+      long released = in.readLong();
+      if (released != superstep) {
+        throw new SyncException("Expected the release of superstep "
+            + superstep + " but got " + released);
+      }
+      int count = in.readInt();
+      List<byte[]> payloads = new ArrayList<byte[]>(count);
+      for (int i = 0; i < count; i++) {
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        payloads.add(payload);
+      }
+      return value == null ? null : BarrierPayload.reduce(value, payloads,
+          combiner);
+    } catch (IOException e) {
+      throw new SyncException(e.toString());
+    }
+  }
+
+  @Override
+  public void register(BSPJobID jobId, TaskAttemptID taskId,
+      String hostAddress, long port) {
+    try {
+      ChannelBuffer frame = newRequest(NettySyncServerImpl.REGISTER);
+      DataOutput out = NettySyncServerImpl.getOutput(frame);
+      out.writeInt(taskId.getTaskID().getId());
+      out.writeUTF(hostAddress + ":" + port);
+      call(frame);
+    } catch (IOException e) {
+      LOG.error(e);
+    }
+  }
+
+  @Override
+  public String[] getAllPeerNames(TaskAttemptID taskId) {
+    if (allPeers == null) {
+      try {
+        DataInput in = call(newRequest(NettySyncServerImpl.PEERS));
+        String[] peers = new String[in.readInt()];
+        for (int i = 0; i < peers.length; i++) {
+          peers[i] = in.readUTF();
+        }
+        allPeers = peers;
+      } catch (IOException e) {
+        LOG.error(e);
+        throw new RuntimeException("All peer names could not be retrieved!");
+      }
+    }
+    return allPeers;
+  }
+
+  /**
+   * @return a new request frame that already holds the header.
+   */
+  private ChannelBuffer newRequest(byte type) throws IOException {
+    ChannelBuffer frame = NettySyncServerImpl.newFrame();
+    DataOutput out = NettySyncServerImpl.getOutput(frame);
+    out.writeByte(type);
+    out.writeUTF(jobId);
+    out.writeInt(numBSPTasks);
+    return frame;
+  }
+
+  /**
+   * Sends a request and blocks until its response arrives.
+   * 
+   * @return the response behind its type.
+   */
+  private synchronized DataInput call(ChannelBuffer frame) throws IOException {
+    byte type = frame.getByte(4);
+    NettySyncServerImpl.write(channel, frame);
+    Object response = null;
+    try {
+      response = responses.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the sync server!");
+    }
+    if (response instanceof Throwable) {
+      IOException e = new IOException("Request to the sync server failed!");
+      e.initCause((Throwable) response);
+      throw e;
+    }
+    DataInput in = new ChannelBufferInputStream((ChannelBuffer) response);
+    byte responseType = in.readByte();
+    if (responseType != type) {
+      throw new IOException("Expected a response of type " + type
+          + " but got " + responseType);
+    }
+    return in;
+  }
+
+  @Override
+  public void deregisterFromBarrier(BSPJobID jobId, TaskAttemptID taskId,
+      String hostAddress, long port) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void stopServer() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    if (channel != null) {
+      channel.close().awaitUninterruptibly();
+    }
+    if (client != null) {
+      client.releaseExternalResources();
+    }
+  }
+
+  private final class ResponseHandler extends SimpleChannelUpstreamHandler {
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+        throws Exception {
+      responses.add(e.getMessage());
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+        throws Exception {
+      // wake up a call that waits for its response
+      responses.add(new IOException("Connection to the sync server was closed!"));
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e)
+        throws Exception {
+      responses.add(e.getCause());
+      e.getChannel().close();
+    }
+
+  }
+
+}
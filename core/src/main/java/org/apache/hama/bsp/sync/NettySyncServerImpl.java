@@ -0,0 +1,353 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.sync;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hama.util.BSPNetUtils;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+/**
+ * A barrier coordinator that the tasks of a job reach over a single persistent
+ * TCP connection each, meant to run inside the BSPMaster or the YARN
+ * ApplicationMaster instead of ZooKeeper. <br/>
+ * A task sends one request to enter or leave a barrier and gets one release
+ * back, which the server writes to every task of the job once the last one has
+ * arrived. Registration and the peer names are handled by the same server.
+ * <br/>
+ * The server listens on "hama.sync.server.address". If that is not set, a free
+ * port is chosen and written into the configuration the tasks get, which only
+ * works if the server runs in the ApplicationMaster.
+ */
+public class NettySyncServerImpl implements SyncServer {
+
+  private static final Log LOG = LogFactory.getLog(NettySyncServerImpl.class);
+
+  public static final String SERVER_ADDRESS = "hama.sync.server.address";
+  /**
+   * The largest request or release in bytes the server and the tasks accept,
+   * a connection that announces a larger one is closed.
+   */
+  public static final String MAX_FRAME_SIZE = "hama.sync.netty.max.frame.size";
+  public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+  // request types, a response repeats the type of its request
+  static final byte REGISTER = 1;
+  static final byte PEERS = 2;
+  static final byte ENTER = 3;
+  static final byte LEAVE = 4;
+
+  private final HashMap<String, JobBarrier> jobs = new HashMap<String, JobBarrier>();
+  // the job each connected task belongs to
+  private final HashMap<Channel, JobBarrier> tasks = new HashMap<Channel, JobBarrier>();
+  private final ChannelGroup channels = new DefaultChannelGroup(
+      NettySyncServerImpl.class.getSimpleName());
+
+  private InetSocketAddress address;
+  private ServerBootstrap server;
+  private int maxFrameSize;
+
+  @Override
+  public Configuration init(Configuration conf) throws Exception {
+    maxFrameSize = conf.getInt(MAX_FRAME_SIZE, DEFAULT_MAX_FRAME_SIZE);
+    String configured = conf.get(SERVER_ADDRESS);
+    if (configured != null) {
+      address = BSPNetUtils.getAddress(configured);
+    } else {
+      address = new InetSocketAddress(BSPNetUtils.getCanonicalHostname(),
+          BSPNetUtils.getFreePort(15700));
+      conf.set(SERVER_ADDRESS, address.getHostName() + ":" + address.getPort());
+    }
+    conf.set(SyncServiceFactory.SYNC_CLIENT_CLASS,
+        NettySyncClientImpl.class.getName());
+    return conf;
+  }
+
+  @Override
+  public void start() throws Exception {
+    server = new ServerBootstrap(new NioServerSocketChannelFactory(
+        Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+    server.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("decoder", new RequestDecoder(maxFrameSize));
+        pipeline.addLast("handler", new BarrierHandler());
+        return pipeline;
+      }
+    });
+    server.setOption("child.tcpNoDelay", true);
+    server.setOption("child.keepAlive", true);
+    channels.add(server.bind(address));
+    LOG.info("Sync server listening on " + address);
+  }
+
+  @Override
+  public void stopServer() {
+    channels.close().awaitUninterruptibly();
+    if (server != null) {
+      server.releaseExternalResources();
+    }
+  }
+
+  /**
+   * @return a new frame, the length is filled in by {@link #write(Channel,
+   *         ChannelBuffer)}.
+   */
+  static ChannelBuffer newFrame() {
+    ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    buffer.writeInt(0);
+    return buffer;
+  }
+
+  static DataOutput getOutput(ChannelBuffer frame) {
+    return new ChannelBufferOutputStream(frame);
+  }
+
+  static void write(Channel channel, ChannelBuffer frame) {
+    frame.setInt(0, frame.writerIndex() - 4);
+    channel.write(frame);
+  }
+
+  /**
+   * The registered tasks of a job and the tasks that wait in its barriers.
+   */
+  private static final class JobBarrier {
+    private final String jobId;
+    private final TreeMap<Integer, String> peers = new TreeMap<Integer, String>();
+    private final List<Channel> peerWaiters = new ArrayList<Channel>();
+    // waiting tasks by barrier type and superstep
+    private final HashMap<String, Barrier> barriers = new HashMap<String, Barrier>();
+    private final List<Channel> connected = new ArrayList<Channel>();
+
+    JobBarrier(String jobId) {
+      this.jobId = jobId;
+    }
+
+    void handle(Channel channel, byte type, int numTasks, DataInput in)
+        throws IOException {
+      switch (type) {
+        case REGISTER:
+          int taskIndex = in.readInt();
+          peers.put(taskIndex, in.readUTF());
+          ChannelBuffer ack = newFrame();
+          ack.writeByte(REGISTER);
+          write(channel, ack);
+          if (peers.size() >= numTasks) {
+            for (Channel waiter : peerWaiters) {
+              writePeers(waiter);
+            }
+            peerWaiters.clear();
+          }
+          break;
+        case PEERS:
+          if (peers.size() >= numTasks) {
+            writePeers(channel);
+          } else {
+            peerWaiters.add(channel);
+          }
+          break;
+        case ENTER:
+        case LEAVE:
+          long superstep = in.readLong();
+          String key = type + ":" + superstep;
+          Barrier barrier = barriers.get(key);
+          if (barrier == null) {
+            barrier = new Barrier(numTasks);
+            barriers.put(key, barrier);
+          }
+          barrier.waiting.add(channel);
+          if (in.readBoolean()) {
+            int index = in.readInt();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            barrier.payloads.put(index, payload);
+          }
+          if (barrier.waiting.size() >= numTasks) {
+            barriers.remove(key);
+            // every task reduces the values of all tasks on its own, we have
+            // neither their classes nor the combiner, so this is O(tasks^2)
+            ChannelBuffer release = newFrame();
+            release.writeByte(type);
+            release.writeLong(superstep);
+            release.writeInt(barrier.payloads.size());
+            for (byte[] payload : barrier.payloads.values()) {
+              release.writeInt(payload.length);
+              release.writeBytes(payload);
+            }
+            for (Channel waiter : barrier.waiting) {
+              write(waiter, release.duplicate());
+            }
+          }
+          break;
+        default:
+          throw new IOException("Unknown request " + type + " of job " + jobId);
+      }
+    }
+
+    private void writePeers(Channel channel) throws IOException {
+      ChannelBuffer frame = newFrame();
+      DataOutput out = getOutput(frame);
+      out.writeByte(PEERS);
+      out.writeInt(peers.size());
+      for (Entry<Integer, String> entry : peers.entrySet()) {
+        out.writeUTF(entry.getValue());
+      }
+      write(channel, frame);
+    }
+
+    /**
+     * @return true if no task of this job is connected anymore.
+     */
+    boolean disconnect(Channel channel) {
+      connected.remove(channel);
+      peerWaiters.remove(channel);
+      for (Barrier barrier : barriers.values()) {
+        barrier.waiting.remove(channel);
+      }
+      return connected.isEmpty();
+    }
+
+  }
+
+  /**
+   * The tasks that wait in a barrier and the values they piggybacked on it,
+   * ordered by task index.
+   */
+  private static final class Barrier {
+    private final List<Channel> waiting;
+    private final TreeMap<Integer, byte[]> payloads = new TreeMap<Integer, byte[]>();
+
+    Barrier(int numTasks) {
+      this.waiting = new ArrayList<Channel>(numTasks);
+    }
+  }
+
+  /**
+   * Decodes a length prefixed frame once it was completely received.
+   */
+  static final class RequestDecoder extends FrameDecoder {
+
+    private final int maxFrameSize;
+
+    RequestDecoder(int maxFrameSize) {
+      this.maxFrameSize = maxFrameSize;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel,
+        ChannelBuffer buffer) throws Exception {
+      if (buffer.readableBytes() < 4) {
+        return null;
+      }
+      int length = buffer.getInt(buffer.readerIndex());
+      if (length < 0 || length > maxFrameSize) {
+        // don't buffer a frame of a corrupt length
+        channel.close();
+        throw new IOException("Corrupted frame with length " + length);
+      }
+      if (buffer.readableBytes() < 4 + length) {
+        return null;
+      }
+      buffer.skipBytes(4);
+      return buffer.readBytes(length);
+    }
+
+  }
+
+  private final class BarrierHandler extends SimpleChannelUpstreamHandler {
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e)
+        throws Exception {
+      channels.add(e.getChannel());
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+        throws Exception {
+      DataInput in = new ChannelBufferInputStream((ChannelBuffer) e
+          .getMessage());
+      byte type = in.readByte();
+      String jobId = in.readUTF();
+      int numTasks = in.readInt();
+      synchronized (jobs) {
+        JobBarrier job = jobs.get(jobId);
+        if (job == null) {
+          job = new JobBarrier(jobId);
+          jobs.put(jobId, job);
+        }
+        if (!tasks.containsKey(e.getChannel())) {
+          tasks.put(e.getChannel(), job);
+          job.connected.add(e.getChannel());
+        }
+        job.handle(e.getChannel(), type, numTasks, in);
+      }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+        throws Exception {
+      synchronized (jobs) {
+        JobBarrier job = tasks.remove(e.getChannel());
+        if (job != null && job.disconnect(e.getChannel())) {
+          // the job has finished
+          jobs.remove(job.jobId);
+        }
+      }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e)
+        throws Exception {
+      LOG.error("Failed to handle a sync request!", e.getCause());
+      e.getChannel().close();
+    }
+
+  }
+
+}
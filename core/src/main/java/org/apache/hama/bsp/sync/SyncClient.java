@@ -18,7 +18,9 @@
 package org.apache.hama.bsp.sync;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
 import org.apache.hama.bsp.BSPJobID;
+import org.apache.hama.bsp.Combiner;
 import org.apache.hama.bsp.TaskAttemptID;
 
 /**
@@ -48,6 +50,26 @@ public interface SyncClient {
   public void enterBarrier(BSPJobID jobId, TaskAttemptID taskId, long superstep)
       throws SyncException;
 
+  /**
+   * Enters the barrier like {@link #enterBarrier(BSPJobID, TaskAttemptID, long)}
+   * and reduces a small value of every task on the way, so a global reduction
+   * costs no additional barrier. Tasks that enter the barrier without a value
+   * are left out of the reduction and get null. The values are combined in
+   * the order of the task ids, so the combiner has to be associative, but need
+   * not be commutative.
+   * 
+   * @param jobId the jobs ID
+   * @param taskId the tasks ID
+   * @param superstep the superstep of the task
+   * @param value the value of this task
+   * @param combiner combines the values of all tasks
+   * @return the value reduced over all tasks.
+   * @throws SyncException
+   */
+  public <W extends Writable> W enterBarrier(BSPJobID jobId,
+      TaskAttemptID taskId, long superstep, W value, Combiner<W> combiner)
+      throws SyncException;
+
   /**
    * Leaves the barrier after all communication has been done, this is usually
    * the end of a superstep.
@@ -23,18 +23,24 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
 import org.apache.hama.Constants;
 import org.apache.hama.bsp.BSPJobID;
+import org.apache.hama.bsp.BSPPeerImpl;
+import org.apache.hama.bsp.Combiner;
 import org.apache.hama.bsp.TaskAttemptID;
 import org.apache.hama.zookeeper.QuorumPeer;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
@@ -44,8 +50,12 @@ import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 
 /**
- * This client class abstracts the use of our zookeeper sync code.
- * 
+ * This client class abstracts the use of our zookeeper sync code. <br/>
+ * With "hama.sync.zookeeper.fast.barrier" set, the znodes of the job are
+ * created once at registration time and every barrier costs each task a
+ * single write and a single notification. Only the last task that arrives at
+ * a barrier reads its znodes, which takes time linear in the number of tasks.
+ * The znodes of passed barriers are deleted asynchronously.
  */
 public class ZooKeeperSyncClientImpl implements SyncClient, Watcher {
   
@@ -58,6 +68,22 @@ public class ZooKeeperSyncClientImpl implements SyncClient, Watcher {
   public static final Log LOG = LogFactory
       .getLog(ZooKeeperSyncClientImpl.class);
 
+  public static final String FAST_BARRIER = "hama.sync.zookeeper.fast.barrier";
+
+  // the number of digits ZooKeeper appends to a sequential znode
+  private static final int SEQUENCE_LENGTH = 10;
+
+  // ignores the result of deleting a stale znode, the session cleans up the
+  // ephemeral ones anyway
+  private static final VoidCallback IGNORE_DELETE = new VoidCallback() {
+    @Override
+    public void processResult(int rc, String path, Object ctx) {
+      if (rc != KeeperException.Code.OK.intValue()) {
+        LOG.debug("Could not delete the stale znode " + path + ": " + rc);
+      }
+    }
+  };
+
   private volatile Integer mutex = 0;
 
   private String quorumServers;
@@ -68,6 +94,16 @@ public class ZooKeeperSyncClientImpl implements SyncClient, Watcher {
   // allPeers is lazily initialized
   private String[] allPeers;
 
+  private boolean fastBarrier;
+  // tasks without a value must pass on the values of the others
+  private boolean reduceInBarrier;
+  // holds a znode per barrier of the job in fast mode
+  private String pathToSyncZnode;
+  private int taskIndex;
+  // the znodes of the last barrier, deleted once the next one was passed
+  private String lastArrivalZnode;
+  private String lastReadyZnode;
+
   @Override
   public void init(Configuration conf, BSPJobID jobId, TaskAttemptID taskId)
       throws Exception {
@@ -84,12 +120,32 @@ public class ZooKeeperSyncClientImpl implements SyncClient, Watcher {
     peerAddress = new InetSocketAddress(bindAddress, bindPort);
     LOG.info("Start connecting to Zookeeper! At " + peerAddress);
     numBSPTasks = conf.getInt("bsp.peers.num", 1);
+    fastBarrier = conf.getBoolean(FAST_BARRIER, false);
+    reduceInBarrier = conf.getBoolean(BSPPeerImpl.BARRIER_REDUCE, false);
+    pathToSyncZnode = bspRoot + "/" + jobId.toString() + "/sync";
+    taskIndex = taskId.getTaskID().getId();
   }
 
   @Override
   public void enterBarrier(BSPJobID jobId, TaskAttemptID taskId, long superstep)
       throws SyncException {
+    enterBarrier(jobId, taskId, superstep, null, null);
+  }
+
+  /**
+   * Every task stores its value in its znode. The task that creates the ready
+   * znode reduces the values of all tasks and stores the result in there, so
+   * the others only have to read a single znode.
+   */
+  @Override
+  public <W extends Writable> W enterBarrier(BSPJobID jobId,
+      TaskAttemptID taskId, long superstep, W value, Combiner<W> combiner)
+      throws SyncException {
     LOG.debug("[" + getPeerName() + "] enter the enterbarrier: " + superstep);
+    if (fastBarrier) {
+      // the setup runs superstep -1, barrier ids must not be negative
+      return barrier((superstep + 1) * 2, value, combiner);
+    }
 
     try {
       synchronized (zk) {
@@ -103,8 +159,9 @@ public class ZooKeeperSyncClientImpl implements SyncClient, Watcher {
 
         Stat readyStat = zk.exists(pathToSuperstepZnode + "/ready",
             barrierWatcher);
-        zk.create(getNodeName(taskId, superstep), null, Ids.OPEN_ACL_UNSAFE,
-            CreateMode.EPHEMERAL);
+        zk.create(getNodeName(taskId, superstep),
+            value == null ? null : BarrierPayload.toBytes(value),
+            Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
 
         List<String> znodes = zk.getChildren(pathToSuperstepZnode, false);
         int size = znodes.size(); // may contains ready
@@ -132,8 +189,25 @@ public class ZooKeeperSyncClientImpl implements SyncClient, Watcher {
         } else {
           LOG.debug("---> at superstep: " + superstep
               + " task that is creating /ready znode:" + taskId.toString());
-          createEphemeralZnode(pathToSuperstepZnode + "/ready");
+          if (value == null) {
+            // the others may need the values we can't reduce
+            createZnode(pathToSuperstepZnode + "/ready", reduceInBarrier
+                ? BarrierPayload.toPacked(getPayloads(pathToSuperstepZnode,
+                    znodes)) : null, CreateMode.EPHEMERAL);
+          } else {
+            W reduced = BarrierPayload.reduce(value, getPayloads(
+                pathToSuperstepZnode, znodes), combiner);
+            // a task that raced us to the ready znode stored the same result
+            createZnode(pathToSuperstepZnode + "/ready", BarrierPayload
+                .toReduced(reduced), CreateMode.EPHEMERAL);
+            return reduced;
+          }
         }
+        if (value == null) {
+          return null;
+        }
+        return BarrierPayload.fromReducedOrPacked(value, zk.getData(
+            pathToSuperstepZnode + "/ready", false, null), combiner);
       }
     } catch (Exception e) {
       throw new SyncException(e.toString());
@@ -143,6 +217,10 @@ public class ZooKeeperSyncClientImpl implements SyncClient, Watcher {
   @Override
   public void leaveBarrier(final BSPJobID jobId, final TaskAttemptID taskId,
       final long superstep) throws SyncException {
+    if (fastBarrier) {
+      barrier((superstep + 1) * 2 + 1, null, null);
+      return;
+    }
     try {
       final String pathToSuperstepZnode = bspRoot + "/"
           + taskId.getJobID().toString() + "/" + superstep;
@@ -242,6 +320,14 @@ public class ZooKeeperSyncClientImpl implements SyncClient, Watcher {
         zk.create("/" + jobId.toString(), new byte[0], Ids.OPEN_ACL_UNSAFE,
             CreateMode.PERSISTENT);
       }
+      if (fastBarrier) {
+        // the barriers don't have to create anything but their own znodes,
+        // the last task that arrives at a barrier creates the next one
+        createZnode(bspRoot);
+        createZnode(bspRoot + "/" + jobId.toString());
+        createZnode(pathToSyncZnode);
+        createZnode(pathToSyncZnode + "/0");
+      }
     } catch (KeeperException e) {
       LOG.error(e);
     } catch (InterruptedException e) {
@@ -391,18 +477,18 @@ public class ZooKeeperSyncClientImpl implements SyncClient, Watcher {
     createZnode(path, CreateMode.PERSISTENT);
   }
 
-  private void createEphemeralZnode(final String path) throws KeeperException,
-      InterruptedException {
-    createZnode(path, CreateMode.EPHEMERAL);
-  }
-
   private void createZnode(final String path, final CreateMode mode)
       throws KeeperException, InterruptedException {
+    createZnode(path, null, mode);
+  }
+
+  private void createZnode(final String path, final byte[] data,
+      final CreateMode mode) throws KeeperException, InterruptedException {
     synchronized (zk) {
       Stat s = zk.exists(path, false);
       if (null == s) {
         try {
-          zk.create(path, null, Ids.OPEN_ACL_UNSAFE, mode);
+          zk.create(path, data, Ids.OPEN_ACL_UNSAFE, mode);
         } catch (KeeperException.NodeExistsException nee) {
           LOG.debug("Ignore because znode may be already created at " + path,
               nee);
@@ -411,6 +497,118 @@ public class ZooKeeperSyncClientImpl implements SyncClient, Watcher {
     }
   }
 
+  /**
+   * A barrier in fast mode. Every barrier has a znode below the sync znode of
+   * the job, in which every task creates a sequential znode named after its
+   * task index. The sequence numbers count the arrivals, so only the task
+   * that gets the last one has to read the znodes of the barrier. It creates
+   * the znode of the next barrier and the ready znode of this one, the others
+   * have set a single watch on that before. ZooKeeper 3.3 has no multi-ops, so
+   * the deletion of passed barriers is sent asynchronously instead.
+   */
+  private <W extends Writable> W barrier(long barrier, W value,
+      Combiner<W> combiner) throws SyncException {
+    final String barrierZnode = pathToSyncZnode + "/" + barrier;
+    final String readyZnode = barrierZnode + "/ready";
+    try {
+      final CountDownLatch released = new CountDownLatch(1);
+      Stat readyStat = zk.exists(readyZnode, new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+          released.countDown();
+        }
+      });
+      String arrivalZnode = arrive(barrierZnode, value);
+
+      String createdReadyZnode = null;
+      W reduced = null;
+      if (readyStat == null) {
+        long arrival = Long.parseLong(arrivalZnode.substring(arrivalZnode
+            .length() - SEQUENCE_LENGTH));
+        if (arrival < numBSPTasks - 1) {
+          released.await();
+        } else {
+          byte[] data = null;
+          if (value != null || reduceInBarrier) {
+            List<byte[]> payloads = getPayloads(barrierZnode, zk.getChildren(
+                barrierZnode, false));
+            if (value != null) {
+              reduced = BarrierPayload.reduce(value, payloads, combiner);
+              data = BarrierPayload.toReduced(reduced);
+            } else {
+              // the others may need the values we can't reduce
+              data = BarrierPayload.toPacked(payloads);
+            }
+          }
+          // every task has sent the deletion of its znodes below the last
+          // but one barrier before it arrived here
+          zk.delete(pathToSyncZnode + "/" + (barrier - 2), -1, IGNORE_DELETE,
+              null);
+          createZnode(pathToSyncZnode + "/" + (barrier + 1));
+          zk.create(readyZnode, data, Ids.OPEN_ACL_UNSAFE,
+              CreateMode.EPHEMERAL);
+          createdReadyZnode = readyZnode;
+        }
+      }
+      if (value != null && reduced == null) {
+        reduced = BarrierPayload.fromReducedOrPacked(value, zk.getData(
+            readyZnode, false, null), combiner);
+      }
+
+      // everybody has left the last barrier once this one was passed
+      if (lastArrivalZnode != null) {
+        zk.delete(lastArrivalZnode, -1, IGNORE_DELETE, null);
+      }
+      if (lastReadyZnode != null) {
+        zk.delete(lastReadyZnode, -1, IGNORE_DELETE, null);
+      }
+      lastArrivalZnode = arrivalZnode;
+      lastReadyZnode = createdReadyZnode;
+      return reduced;
+    } catch (Exception e) {
+      throw new SyncException(e.toString());
+    }
+  }
+
+  /**
+   * Creates the znode of this task below the given barrier, and the barrier
+   * itself if the barriers before it were skipped.
+   * 
+   * @return the path of the znode, it ends with the number of tasks that
+   *         arrived before.
+   */
+  private String arrive(String barrierZnode, Writable value)
+      throws KeeperException, InterruptedException, IOException {
+    String arrivalZnode = barrierZnode + "/"
+        + String.format("%06d", taskIndex) + "-";
+    byte[] data = value == null ? null : BarrierPayload.toBytes(value);
+    try {
+      return zk.create(arrivalZnode, data, Ids.OPEN_ACL_UNSAFE,
+          CreateMode.EPHEMERAL_SEQUENTIAL);
+    } catch (KeeperException.NoNodeException nne) {
+      createZnode(barrierZnode);
+      return zk.create(arrivalZnode, data, Ids.OPEN_ACL_UNSAFE,
+          CreateMode.EPHEMERAL_SEQUENTIAL);
+    }
+  }
+
+  /**
+   * Reads the values that the tasks stored in the given znodes, null for tasks
+   * without a value.
+   */
+  private List<byte[]> getPayloads(String pathToSuperstepZnode,
+      List<String> znodes) throws KeeperException, InterruptedException {
+    List<String> sorted = new ArrayList<String>(znodes);
+    sorted.remove("ready");
+    // znodes are named after the task attempts, so this is the task order
+    Collections.sort(sorted);
+    List<byte[]> payloads = new ArrayList<byte[]>(sorted.size());
+    for (String znode : sorted) {
+      payloads.add(zk.getData(pathToSuperstepZnode + "/" + znode, false, null));
+    }
+    return payloads;
+  }
+
   /*
    * INNER CLASSES
    */
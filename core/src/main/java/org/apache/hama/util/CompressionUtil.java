@@ -17,8 +17,6 @@
  */
 package org.apache.hama.util;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 
 import org.apache.hama.bsp.BSPMessageBundle;
@@ -38,16 +36,9 @@ public class CompressionUtil {
   public static float getCompressionRatio(BSPCompressedBundle compMsgBundle,
       BSPMessageBundle<?> bundle) throws IOException {
 
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    DataOutputStream dos = new DataOutputStream(bos);
-    bundle.write(dos);
-
-    dos.close();
-    bos.close();
-
     float compLen = compMsgBundle.getData().length;
 
-    return (compLen / bos.toByteArray().length);
+    return (compLen / bundle.getLength());
   }
 
 }
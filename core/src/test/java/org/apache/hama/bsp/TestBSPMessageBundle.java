@@ -25,10 +25,14 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Iterator;
 
 import junit.framework.TestCase;
 
-import org.apache.hadoop.io.BytesWritable;;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 
 public class TestBSPMessageBundle extends TestCase {
 
@@ -82,4 +86,32 @@ public class TestBSPMessageBundle extends TestCase {
     }
     assertEquals(testMessages.length, messageNumber);
   }
+
+  public void testMixedClassesAndLength() throws IOException {
+    BSPMessageBundle<Writable> bundle = new BSPMessageBundle<Writable>();
+    bundle.addMessage(new IntWritable(1));
+    bundle.addMessage(new IntWritable(2));
+    bundle.addMessage(new Text("three"));
+    bundle.addMessage(new IntWritable(4));
+    assertEquals(4, bundle.size());
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    bundle.write(new DataOutputStream(baos));
+    baos.close();
+    // the length is known before the bundle is written
+    assertEquals(baos.size(), bundle.getLength());
+
+    BSPMessageBundle<Writable> readBundle = new BSPMessageBundle<Writable>();
+    readBundle.readFields(new DataInputStream(new ByteArrayInputStream(baos
+        .toByteArray())));
+    assertEquals(4, readBundle.size());
+    assertEquals(bundle.getLength(), readBundle.getLength());
+    // messages keep the order they were added in
+    Iterator<Writable> iterator = readBundle.iterator();
+    assertEquals(1, ((IntWritable) iterator.next()).get());
+    assertEquals(2, ((IntWritable) iterator.next()).get());
+    assertEquals("three", iterator.next().toString());
+    assertEquals(4, ((IntWritable) iterator.next()).get());
+    assertFalse(iterator.hasNext());
+  }
 }
@@ -17,14 +17,18 @@
  */
 package org.apache.hama.bsp;
 
+import java.io.IOException;
+
 import junit.framework.TestCase;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hama.Constants;
 import org.apache.hama.HamaConfiguration;
+import org.apache.hama.bsp.sync.SyncException;
 
 public class TestLocalRunner extends TestCase {
 
@@ -51,4 +55,69 @@ public class TestLocalRunner extends TestCase {
     }
   }
 
+  public void testOverlappedSync() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set("bsp.local.dir", "/tmp/hama-test");
+    BSPJob bsp = new BSPJob(new HamaConfiguration(conf));
+    bsp.setJobName("Test Overlapped Sync");
+
+    bsp.setBspClass(OverlappedSyncBSP.class);
+    bsp.setOutputFormat(NullOutputFormat.class);
+    bsp.setNumBspTask(3);
+    bsp.setInputFormat(NullInputFormat.class);
+
+    assertTrue(bsp.waitForCompletion(true));
+  }
+
+  public static class OverlappedSyncBSP extends
+      BSP<NullWritable, NullWritable, NullWritable, NullWritable, IntWritable> {
+
+    private static final int NUM_SUPERSTEPS = 5;
+
+    @Override
+    public void bsp(
+        BSPPeer<NullWritable, NullWritable, NullWritable, NullWritable, IntWritable> peer)
+        throws IOException, SyncException, InterruptedException {
+      for (int i = 0; i < NUM_SUPERSTEPS; i++) {
+        for (String otherPeer : peer.getAllPeerNames()) {
+          peer.send(otherPeer, new IntWritable(peer.getPeerIndex() + i));
+        }
+        peer.beginSync();
+
+        // the messages belong to the sync until it has finished
+        try {
+          peer.send(peer.getPeerName(), new IntWritable(-1));
+          throw new IOException("Sent a message during a sync!");
+        } catch (IllegalStateException e) {
+        }
+        try {
+          peer.getCurrentMessage();
+          throw new IOException("Read a message during a sync!");
+        } catch (IllegalStateException e) {
+        }
+
+        // compute while the messages are transferred
+        int expected = 0;
+        for (int index = 0; index < peer.getNumPeers(); index++) {
+          expected += index + i;
+        }
+
+        peer.awaitSync();
+        if (peer.getNumCurrentMessages() != peer.getNumPeers()) {
+          throw new IOException("Expected " + peer.getNumPeers()
+              + " messages, but got " + peer.getNumCurrentMessages());
+        }
+        int sum = 0;
+        IntWritable msg = null;
+        while ((msg = peer.getCurrentMessage()) != null) {
+          sum += msg.get();
+        }
+        if (sum != expected) {
+          throw new IOException("Expected a sum of " + expected
+              + ", but got " + sum);
+        }
+      }
+    }
+  }
+
 }
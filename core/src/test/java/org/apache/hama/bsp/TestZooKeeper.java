@@ -21,10 +21,19 @@ package org.apache.hama.bsp;
 
 import java.io.IOException;
 import java.util.ArrayList;
-
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hama.Constants;
 import org.apache.hama.HamaCluster;
 import org.apache.hama.HamaConfiguration;
+import org.apache.hama.bsp.sync.SyncClient;
+import org.apache.hama.bsp.sync.ZooKeeperSyncClientImpl;
 import org.apache.hama.zookeeper.QuorumPeer;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
@@ -116,4 +125,76 @@ public class TestZooKeeper extends HamaCluster {
     }
   }
 
+  public void testFastBarrier() throws Exception {
+    final int numTasks = 3;
+    final int numSupersteps = 6;
+    final HamaConfiguration conf = new HamaConfiguration(configuration);
+    conf.setInt("bsp.peers.num", numTasks);
+    conf.setBoolean(ZooKeeperSyncClientImpl.FAST_BARRIER, true);
+
+    final AtomicInteger[] entered = new AtomicInteger[numSupersteps];
+    for (int i = 0; i < numSupersteps; i++) {
+      entered[i] = new AtomicInteger();
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(numTasks);
+    List<Future<SyncClient>> results = new ArrayList<Future<SyncClient>>();
+    for (int i = 0; i < numTasks; i++) {
+      final int task = i;
+      results.add(pool.submit(new Callable<SyncClient>() {
+        @Override
+        public SyncClient call() throws Exception {
+          TaskAttemptID taskId = new TaskAttemptID("1", 1, task, 1);
+          SyncClient client = new ZooKeeperSyncClientImpl();
+          client.init(conf, taskId.getJobID(), taskId);
+          client.register(taskId.getJobID(), taskId, "localhost", 1000 + task);
+          for (int superstep = 0; superstep < numSupersteps; superstep++) {
+            entered[superstep].incrementAndGet();
+            IntWritable sum = client.enterBarrier(taskId.getJobID(), taskId,
+                superstep, new IntWritable(task), new Combiner<IntWritable>() {
+                  @Override
+                  public IntWritable combine(Iterable<IntWritable> messages) {
+                    int sum = 0;
+                    for (IntWritable msg : messages) {
+                      sum += msg.get();
+                    }
+                    return new IntWritable(sum);
+                  }
+                });
+            // nobody passes the barrier before everybody has entered it
+            assertEquals(numTasks, entered[superstep].get());
+            assertEquals(numTasks * (numTasks - 1) / 2, sum.get());
+            client.leaveBarrier(taskId.getJobID(), taskId, superstep);
+          }
+          return client;
+        }
+      }));
+    }
+    List<SyncClient> clients = new ArrayList<SyncClient>();
+    for (Future<SyncClient> result : results) {
+      clients.add(result.get());
+    }
+    pool.shutdown();
+
+    ZooKeeper zk = new ZooKeeper(QuorumPeer.getZKQuorumServersString(conf),
+        6000, new Watcher() {
+          @Override
+          public void process(WatchedEvent event) {
+          }
+        });
+    String bspRoot = conf.get(Constants.ZOOKEEPER_ROOT,
+        Constants.DEFAULT_ZOOKEEPER_ROOT);
+    List<String> znodes = zk.getChildren(bspRoot + "/"
+        + new TaskAttemptID("1", 1, 0, 1).getJobID() + "/sync", false);
+    for (String znode : znodes) {
+      // a barrier is deleted before the next but one is passed, only the last
+      // two and the one created for the next superstep are left
+      long barrier = Long.parseLong(znode);
+      assertTrue(znode, barrier >= numSupersteps * 2);
+    }
+    zk.close();
+    for (SyncClient client : clients) {
+      client.close();
+    }
+  }
+
 }
@@ -0,0 +1,209 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.KeyedCombiner;
+import org.apache.hama.bsp.KeyedMessage;
+import org.apache.hama.bsp.TaskAttemptID;
+import org.apache.hama.bsp.TaskID;
+import org.junit.Test;
+
+public class TestCombiningQueue extends TestCase {
+
+  public static class DistanceMessage implements KeyedMessage<Integer> {
+
+    int vertex;
+    int distance;
+
+    public DistanceMessage() {
+    }
+
+    public DistanceMessage(int vertex, int distance) {
+      this.vertex = vertex;
+      this.distance = distance;
+    }
+
+    @Override
+    public Integer getCombineKey() {
+      return vertex;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeInt(vertex);
+      out.writeInt(distance);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      vertex = in.readInt();
+      distance = in.readInt();
+    }
+
+  }
+
+  /**
+   * A message whose key is a mutable Writable, like a vertex id.
+   */
+  public static class NamedDistanceMessage implements KeyedMessage<Text> {
+
+    Text vertex = new Text();
+    int distance;
+
+    @Override
+    public Text getCombineKey() {
+      return vertex;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      vertex.write(out);
+      out.writeInt(distance);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      vertex.readFields(in);
+      distance = in.readInt();
+    }
+
+  }
+
+  public static class MinNamedDistanceCombiner extends KeyedCombiner<Writable> {
+
+    @Override
+    public Writable combine(Writable first, Writable second) {
+      NamedDistanceMessage a = (NamedDistanceMessage) first;
+      a.distance = Math.min(a.distance,
+          ((NamedDistanceMessage) second).distance);
+      return a;
+    }
+
+  }
+
+  public static class MinDistanceCombiner extends KeyedCombiner<Writable> {
+
+    @Override
+    public Writable combine(Writable first, Writable second) {
+      DistanceMessage a = (DistanceMessage) first;
+      a.distance = Math.min(a.distance, ((DistanceMessage) second).distance);
+      return a;
+    }
+
+  }
+
+  @Test
+  public void testCombining() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setClass(KeyedCombiner.KEYED_COMBINER_CLASS,
+        MinDistanceCombiner.class, KeyedCombiner.class);
+    CombiningQueue<Writable> queue = new CombiningQueue<Writable>();
+    queue.setConf(conf);
+    queue.init(conf, new TaskAttemptID(new TaskID("123", 1, 2), 0));
+
+    for (int i = 0; i < 100; i++) {
+      queue.add(new DistanceMessage(i % 10, 100 - i));
+    }
+    // messages without a key are passed through
+    queue.add(new IntWritable(42));
+    assertEquals(11, queue.size());
+
+    for (int vertex = 0; vertex < 10; vertex++) {
+      DistanceMessage msg = (DistanceMessage) queue.poll();
+      assertEquals(vertex, msg.vertex);
+      assertEquals(100 - (90 + vertex), msg.distance);
+    }
+    assertEquals(42, ((IntWritable) queue.poll()).get());
+    assertNull(queue.poll());
+    queue.close();
+  }
+
+  @Test
+  public void testReusedMessage() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setClass(KeyedCombiner.KEYED_COMBINER_CLASS,
+        MinDistanceCombiner.class, KeyedCombiner.class);
+    CombiningQueue<Writable> queue = new CombiningQueue<Writable>();
+    queue.setConf(conf);
+    queue.init(conf, new TaskAttemptID(new TaskID("123", 1, 2), 0));
+
+    // the caller reuses a single message, like a vertex sending to neighbours
+    DistanceMessage msg = new DistanceMessage();
+    for (int i = 0; i < 100; i++) {
+      msg.vertex = i % 10;
+      msg.distance = i;
+      queue.add(msg);
+      // combining must not touch the message of the caller
+      assertEquals(i % 10, msg.vertex);
+      assertEquals(i, msg.distance);
+    }
+    assertEquals(10, queue.size());
+
+    for (int vertex = 0; vertex < 10; vertex++) {
+      DistanceMessage combined = (DistanceMessage) queue.poll();
+      assertNotSame(msg, combined);
+      assertEquals(vertex, combined.vertex);
+      assertEquals(vertex, combined.distance);
+    }
+    assertNull(queue.poll());
+    queue.close();
+  }
+
+  @Test
+  public void testReusedKey() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setClass(KeyedCombiner.KEYED_COMBINER_CLASS,
+        MinNamedDistanceCombiner.class, KeyedCombiner.class);
+    CombiningQueue<Writable> queue = new CombiningQueue<Writable>();
+    queue.setConf(conf);
+    queue.init(conf, new TaskAttemptID(new TaskID("123", 1, 2), 0));
+
+    // the caller reuses the message and its key, "Aa" and "BB" have the same
+    // hash code, so a mutated key in the queue would match the wrong one
+    NamedDistanceMessage msg = new NamedDistanceMessage();
+    for (int i = 0; i < 100; i++) {
+      msg.vertex.set(getName(i % 10));
+      msg.distance = i;
+      queue.add(msg);
+    }
+    assertEquals(10, queue.size());
+
+    for (int vertex = 0; vertex < 10; vertex++) {
+      NamedDistanceMessage combined = (NamedDistanceMessage) queue.poll();
+      assertEquals(getName(vertex), combined.vertex.toString());
+      assertEquals(vertex, combined.distance);
+    }
+    assertNull(queue.poll());
+    queue.close();
+  }
+
+  private static String getName(int vertex) {
+    return (vertex % 2 == 0 ? "Aa" : "BB") + (vertex / 2);
+  }
+
+}
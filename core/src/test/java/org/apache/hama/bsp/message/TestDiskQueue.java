@@ -23,6 +23,8 @@ import junit.framework.TestCase;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hama.bsp.TaskAttemptID;
 import org.apache.hama.bsp.TaskID;
 import org.junit.Test;
@@ -51,6 +53,35 @@ public class TestDiskQueue extends TestCase {
     queue.close();
   }
 
+  @Test
+  public void testSegments() throws Exception {
+    Configuration segmentConf = new Configuration(conf);
+    // roll over to a new segment every few messages
+    segmentConf.setLong(DiskQueue.SEGMENT_SIZE_KEY, 64);
+    TaskAttemptID id = new TaskAttemptID(new TaskID("123", 1, 2), 0);
+    DiskQueue<Writable> queue = new DiskQueue<Writable>();
+    queue.setConf(segmentConf);
+    queue.init(segmentConf, id);
+
+    for (int i = 0; i < 100; i++) {
+      queue.add(new IntWritable(i));
+    }
+    // interleave reads and writes of different classes
+    for (int i = 0; i < 50; i++) {
+      assertEquals(i, ((IntWritable) queue.poll()).get());
+      queue.add(new Text(String.valueOf(i)));
+    }
+    for (int i = 50; i < 100; i++) {
+      assertEquals(i, ((IntWritable) queue.poll()).get());
+    }
+    for (int i = 0; i < 50; i++) {
+      assertEquals(String.valueOf(i), queue.poll().toString());
+    }
+    assertEquals(0, queue.size());
+    assertNull(queue.poll());
+    queue.close();
+  }
+
   public DiskQueue<IntWritable> getQueue() {
     TaskAttemptID id = new TaskAttemptID(new TaskID("123", 1, 2), 0);
     DiskQueue<IntWritable> queue = new DiskQueue<IntWritable>();
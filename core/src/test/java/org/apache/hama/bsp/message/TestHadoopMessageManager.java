@@ -27,10 +27,13 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Writable;
 import org.apache.hama.bsp.BSPMessageBundle;
 import org.apache.hama.bsp.BSPPeer;
 import org.apache.hama.bsp.BSPPeerImpl;
+import org.apache.hama.bsp.Combiner;
 import org.apache.hama.bsp.Counters;
+import org.apache.hama.bsp.KeyedCombiner;
 import org.apache.hama.bsp.TaskAttemptID;
 import org.apache.hama.util.BSPNetUtils;
 
@@ -49,13 +52,296 @@ public class TestHadoopMessageManager extends TestCase {
     messagingInternal(conf);
   }
 
+  public void testSynchronousMessaging() throws Exception {
+    Configuration conf = new Configuration();
+    // every put blocks until it has been acknowledged
+    conf.setInt(HadoopMessageManagerImpl.RPC_WINDOW, 0);
+    conf.set(MessageManager.QUEUE_TYPE_CLASS,
+        MemoryQueue.class.getCanonicalName());
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY, TMP_OUTPUT_PATH);
+    messagingInternal(conf);
+  }
+
+  public void testFlowControlledMessaging() throws Exception {
+    Configuration conf = new Configuration();
+    // smaller than a single bundle, so every bundle is accepted alone
+    conf.setLong(HadoopMessageManagerImpl.RECEIVE_BUDGET, 16);
+    conf.set(MessageManager.QUEUE_TYPE_CLASS,
+        MemoryQueue.class.getCanonicalName());
+    // the budget needs a receive queue that keeps the messages off the heap
+    conf.set(MessageManager.RECEIVE_QUEUE_TYPE_CLASS,
+        SpillingQueue.class.getCanonicalName());
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY, TMP_OUTPUT_PATH);
+    messagingInternal(conf);
+  }
+
+  public void testFlowControlNeedsOffHeapReceiveQueue() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY, TMP_OUTPUT_PATH);
+    conf.setLong(HadoopMessageManagerImpl.RECEIVE_BUDGET, 16);
+    conf.set(MessageManager.RECEIVE_QUEUE_TYPE_CLASS,
+        MemoryQueue.class.getCanonicalName());
+    conf.set(MessageManagerFactory.MESSAGE_MANAGER_CLASS,
+        "org.apache.hama.bsp.message.HadoopMessageManagerImpl");
+    MessageManager<IntWritable> messageManager = MessageManagerFactory
+        .getMessageManager(conf);
+
+    InetSocketAddress peer = new InetSocketAddress(
+        BSPNetUtils.getCanonicalHostname(), BSPNetUtils.getFreePort()
+            + (increment++));
+    BSPPeer<?, ?, ?, ?, IntWritable> dummyPeer = new BSPPeerImpl<NullWritable, NullWritable, NullWritable, NullWritable, IntWritable>(
+        conf, FileSystem.get(conf), new Counters());
+    TaskAttemptID id = new TaskAttemptID("1", 1, 1, 1);
+    try {
+      messageManager.init(id, dummyPeer, conf, peer);
+      fail("The received messages would be kept on the heap!");
+    } catch (IllegalArgumentException e) {
+    }
+    messageManager.close();
+  }
+
   public void testDiskMessaging() throws Exception {
     Configuration conf = new Configuration();
     conf.set(DiskQueue.DISK_QUEUE_PATH_KEY, TMP_OUTPUT_PATH);
     messagingInternal(conf);
   }
 
+  public void testStreamingMessaging() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(MessageManager.STREAMING_THRESHOLD, 10);
+    streamingInternal(conf);
+  }
+
+  public void testStreamingMessagingByBytes() throws Exception {
+    Configuration conf = new Configuration();
+    // the header of a bundle takes about 50 bytes and an IntWritable four, so
+    // this flushes every dozen messages
+    conf.setInt(MessageManager.STREAMING_THRESHOLD_BYTES, 100);
+    streamingInternal(conf);
+  }
+
+  private static void streamingInternal(Configuration conf) throws Exception {
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY, TMP_OUTPUT_PATH);
+    conf.setBoolean(MessageManager.LOOPBACK, false);
+    conf.set(MessageManagerFactory.MESSAGE_MANAGER_CLASS,
+        "org.apache.hama.bsp.message.HadoopMessageManagerImpl");
+    MessageManager<IntWritable> messageManager = MessageManagerFactory
+        .getMessageManager(conf);
+
+    InetSocketAddress peer = new InetSocketAddress(
+        BSPNetUtils.getCanonicalHostname(), BSPNetUtils.getFreePort()
+            + (increment++));
+    BSPPeer<?, ?, ?, ?, IntWritable> dummyPeer = new BSPPeerImpl<NullWritable, NullWritable, NullWritable, NullWritable, IntWritable>(
+        conf, FileSystem.get(conf), new Counters());
+    TaskAttemptID id = new TaskAttemptID("1", 1, 1, 1);
+    messageManager.init(id, dummyPeer, conf, peer);
+    String peerName = peer.getHostName() + ":" + peer.getPort();
+
+    IntWritable msg = new IntWritable();
+    for (int i = 0; i < 25; i++) {
+      // streamed messages are serialized right away, so this is safe
+      msg.set(i);
+      messageManager.send(peerName, msg);
+    }
+    // flushes the last bundle and waits for all streamed bundles
+    messageManager.finishSendPhase();
+    // nothing is left for the sync to transfer
+    assertFalse(messageManager.getMessageIterator().hasNext());
+    // puts are asynchronous
+    messageManager.finishTransfers();
+
+    messageManager.clearOutgoingQueues();
+
+    assertEquals(25, messageManager.getNumCurrentMessages());
+    int sum = 0;
+    while ((msg = messageManager.getCurrentMessage()) != null) {
+      sum += msg.get();
+    }
+    assertEquals(300, sum);
+    messageManager.close();
+  }
+
+  public void testLoopback() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY, TMP_OUTPUT_PATH);
+    conf.setBoolean(MessageManager.LOOPBACK, true);
+    conf.set(MessageManagerFactory.MESSAGE_MANAGER_CLASS,
+        "org.apache.hama.bsp.message.HadoopMessageManagerImpl");
+    MessageManager<IntWritable> messageManager = MessageManagerFactory
+        .getMessageManager(conf);
+
+    InetSocketAddress peer = new InetSocketAddress(
+        BSPNetUtils.getCanonicalHostname(), BSPNetUtils.getFreePort()
+            + (increment++));
+    Counters counters = new Counters();
+    BSPPeer<?, ?, ?, ?, IntWritable> dummyPeer = new BSPPeerImpl<NullWritable, NullWritable, NullWritable, NullWritable, IntWritable>(
+        conf, FileSystem.get(conf), counters);
+    TaskAttemptID id = new TaskAttemptID("1", 1, 1, 1);
+    messageManager.init(id, dummyPeer, conf, peer);
+    String peerName = peer.getHostName() + ":" + peer.getPort();
+
+    messageManager.send(peerName, new IntWritable(1337));
+    // nothing to transfer, the message went directly to the incoming queue
+    assertFalse(messageManager.getMessageIterator().hasNext());
+    assertEquals(1L,
+        counters.findCounter(BSPPeerImpl.PeerCounter.TOTAL_MESSAGES_LOOPBACK)
+            .getCounter());
+
+    messageManager.clearOutgoingQueues();
+    assertEquals(1, messageManager.getNumCurrentMessages());
+    assertEquals(1337, messageManager.getCurrentMessage().get());
+    messageManager.close();
+  }
+
+  public static class SumCombiner extends Combiner<IntWritable> {
+
+    @Override
+    public IntWritable combine(Iterable<IntWritable> messages) {
+      int sum = 0;
+      for (IntWritable msg : messages) {
+        sum += msg.get();
+      }
+      return new IntWritable(sum);
+    }
+
+  }
+
+  public void testLoopbackWithCombiner() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY, TMP_OUTPUT_PATH);
+    conf.set(MessageManagerFactory.MESSAGE_MANAGER_CLASS,
+        "org.apache.hama.bsp.message.HadoopMessageManagerImpl");
+    conf.setBoolean(MessageManager.LOOPBACK, true);
+    conf.setClass("bsp.combiner.class", SumCombiner.class, Combiner.class);
+    MessageManager<IntWritable> messageManager = MessageManagerFactory
+        .getMessageManager(conf);
+
+    InetSocketAddress peer = new InetSocketAddress(
+        BSPNetUtils.getCanonicalHostname(), BSPNetUtils.getFreePort()
+            + (increment++));
+    Counters counters = new Counters();
+    BSPPeer<?, ?, ?, ?, IntWritable> dummyPeer = new BSPPeerImpl<NullWritable, NullWritable, NullWritable, NullWritable, IntWritable>(
+        conf, FileSystem.get(conf), counters);
+    TaskAttemptID id = new TaskAttemptID("1", 1, 1, 1);
+    messageManager.init(id, dummyPeer, conf, peer);
+    String peerName = peer.getHostName() + ":" + peer.getPort();
+
+    for (int i = 1; i <= 10; i++) {
+      messageManager.send(peerName, new IntWritable(i));
+    }
+    // loopback is ignored, the messages wait for the combiner of the peer
+    assertEquals(0L,
+        counters.findCounter(BSPPeerImpl.PeerCounter.TOTAL_MESSAGES_LOOPBACK)
+            .getCounter());
+    messageManager.finishSendPhase();
+    Entry<InetSocketAddress, MessageQueue<IntWritable>> entry = messageManager
+        .getMessageIterator().next();
+    assertEquals(peer, entry.getKey());
+    assertEquals(10, entry.getValue().size());
+
+    // this is what the peer does in the sync
+    BSPMessageBundle<IntWritable> bundle = new BSPMessageBundle<IntWritable>();
+    bundle.addMessage(new SumCombiner().combine(entry.getValue()));
+    messageManager.transfer(peer, bundle);
+    messageManager.finishTransfers();
+
+    messageManager.clearOutgoingQueues();
+    assertEquals(1, messageManager.getNumCurrentMessages());
+    assertEquals(55, messageManager.getCurrentMessage().get());
+    messageManager.close();
+  }
+
+  public void testLoopbackReusedMessage() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY, TMP_OUTPUT_PATH);
+    conf.set(MessageManagerFactory.MESSAGE_MANAGER_CLASS,
+        "org.apache.hama.bsp.message.HadoopMessageManagerImpl");
+    conf.setBoolean(MessageManager.LOOPBACK, true);
+    conf.setClass(KeyedCombiner.KEYED_COMBINER_CLASS,
+        TestCombiningQueue.MinDistanceCombiner.class, KeyedCombiner.class);
+    conf.setBoolean(MessageManager.RECEIVE_COMBINING, true);
+    MessageManager<Writable> messageManager = MessageManagerFactory
+        .getMessageManager(conf);
+
+    InetSocketAddress peer = new InetSocketAddress(
+        BSPNetUtils.getCanonicalHostname(), BSPNetUtils.getFreePort()
+            + (increment++));
+    BSPPeer<?, ?, ?, ?, Writable> dummyPeer = new BSPPeerImpl<NullWritable, NullWritable, NullWritable, NullWritable, Writable>(
+        conf, FileSystem.get(conf), new Counters());
+    TaskAttemptID id = new TaskAttemptID("1", 1, 1, 1);
+    messageManager.init(id, dummyPeer, conf, peer);
+    String peerName = peer.getHostName() + ":" + peer.getPort();
+
+    // the caller keeps using its message after sending it to itself
+    TestCombiningQueue.DistanceMessage msg = new TestCombiningQueue.DistanceMessage();
+    for (int i = 0; i < 20; i++) {
+      msg.vertex = i % 2;
+      msg.distance = 20 - i;
+      messageManager.send(peerName, msg);
+      assertEquals(20 - i, msg.distance);
+    }
+    // a plain message is delivered as it was sent
+    IntWritable plain = new IntWritable(1337);
+    messageManager.send(peerName, plain);
+    plain.set(42);
+
+    messageManager.clearOutgoingQueues();
+    assertEquals(3, messageManager.getNumCurrentMessages());
+    for (int vertex = 0; vertex < 2; vertex++) {
+      TestCombiningQueue.DistanceMessage combined = (TestCombiningQueue.DistanceMessage) messageManager
+          .getCurrentMessage();
+      assertEquals(vertex, combined.vertex);
+      assertEquals(2 - vertex, combined.distance);
+    }
+    assertEquals(1337, ((IntWritable) messageManager.getCurrentMessage()).get());
+    messageManager.close();
+  }
+
+  public void testReceiveCombining() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY, TMP_OUTPUT_PATH);
+    conf.set(MessageManagerFactory.MESSAGE_MANAGER_CLASS,
+        "org.apache.hama.bsp.message.HadoopMessageManagerImpl");
+    conf.setClass(KeyedCombiner.KEYED_COMBINER_CLASS,
+        TestCombiningQueue.MinDistanceCombiner.class, KeyedCombiner.class);
+    conf.setBoolean(MessageManager.RECEIVE_COMBINING, true);
+    // must not keep all messages until the queues are switched
+    conf.setBoolean(MessageManager.RECEIVE_QUEUE_LOCK_FREE, true);
+    MessageManager<Writable> messageManager = MessageManagerFactory
+        .getMessageManager(conf);
+
+    InetSocketAddress peer = new InetSocketAddress(
+        BSPNetUtils.getCanonicalHostname(), BSPNetUtils.getFreePort()
+            + (increment++));
+    BSPPeer<?, ?, ?, ?, Writable> dummyPeer = new BSPPeerImpl<NullWritable, NullWritable, NullWritable, NullWritable, Writable>(
+        conf, FileSystem.get(conf), new Counters());
+    TaskAttemptID id = new TaskAttemptID("1", 1, 1, 1);
+    messageManager.init(id, dummyPeer, conf, peer);
+
+    // bundles of two senders arrive for the same ten vertices
+    for (int sender = 0; sender < 2; sender++) {
+      BSPMessageBundle<Writable> bundle = new BSPMessageBundle<Writable>();
+      for (int i = 0; i < 100; i++) {
+        bundle.addMessage(new TestCombiningQueue.DistanceMessage(i % 10, sender
+            * 100 + i));
+      }
+      ((HadoopMessageManagerImpl<Writable>) messageManager).put(bundle);
+    }
+
+    messageManager.clearOutgoingQueues();
+    assertEquals(10, messageManager.getNumCurrentMessages());
+    for (int vertex = 0; vertex < 10; vertex++) {
+      TestCombiningQueue.DistanceMessage msg = (TestCombiningQueue.DistanceMessage) messageManager
+          .getCurrentMessage();
+      assertEquals(vertex, msg.vertex);
+      assertEquals(vertex, msg.distance);
+    }
+    messageManager.close();
+  }
+
   private static void messagingInternal(Configuration conf) throws Exception {
+    // we want to test the transfer, so don't short-circuit our own messages
+    conf.setBoolean(MessageManager.LOOPBACK, false);
     conf.set(MessageManagerFactory.MESSAGE_MANAGER_CLASS,
         "org.apache.hama.bsp.message.HadoopMessageManagerImpl");
     MessageManager<IntWritable> messageManager = MessageManagerFactory
@@ -90,6 +376,8 @@ public class TestHadoopMessageManager extends TestCase {
     }
 
     messageManager.transfer(peer, bundle);
+    // puts are asynchronous
+    messageManager.finishTransfers();
 
     messageManager.clearOutgoingQueues();
 
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hama.bsp.BSPMessageBundle;
+import org.apache.hama.bsp.message.type.IntegerDoubleArrayMessage;
+
+public class TestIntegerDoubleArrayQueue extends TestCase {
+
+  public void testBatchesAreMerged() throws Exception {
+    IntegerDoubleArrayQueue queue = new IntegerDoubleArrayQueue();
+    assertEquals(0, queue.size());
+    assertNull(queue.poll());
+
+    // the same batch is reused for every add
+    IntegerDoubleArrayMessage batch = new IntegerDoubleArrayMessage();
+    int n = 0;
+    for (int i = 0; i < 10; i++) {
+      batch.clear();
+      for (int j = 0; j < 100; j++) {
+        batch.add(n, n / 2d);
+        n++;
+      }
+      queue.add(batch);
+    }
+    assertEquals(1, queue.size());
+
+    IntegerDoubleArrayMessage merged = queue.poll();
+    assertEquals(0, queue.size());
+    assertEquals(n, merged.size());
+    for (int i = 0; i < n; i++) {
+      assertEquals(i, merged.getTag(i));
+      assertEquals(i / 2d, merged.getData(i));
+    }
+  }
+
+  public void testBundleRoundTrip() throws Exception {
+    IntegerDoubleArrayMessage batch = new IntegerDoubleArrayMessage();
+    // larger than a single serialization chunk
+    int n = 5000;
+    for (int i = 0; i < n; i++) {
+      batch.add(i, Math.sqrt(i));
+    }
+    BSPMessageBundle<IntegerDoubleArrayMessage> bundle = new BSPMessageBundle<IntegerDoubleArrayMessage>();
+    bundle.addMessage(batch);
+    bundle.addMessage(new IntegerDoubleArrayMessage());
+    // tags and data are written as plain blocks
+    assertTrue(bundle.getLength() < n * 12 + 200);
+
+    DataOutputBuffer out = new DataOutputBuffer();
+    bundle.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    BSPMessageBundle<IntegerDoubleArrayMessage> received = new BSPMessageBundle<IntegerDoubleArrayMessage>();
+    received.readFields(in);
+
+    IntegerDoubleArrayQueue queue = new IntegerDoubleArrayQueue();
+    for (IntegerDoubleArrayMessage msg : received) {
+      queue.add(msg);
+    }
+    IntegerDoubleArrayMessage merged = queue.poll();
+    assertEquals(n, merged.size());
+    for (int i = 0; i < n; i++) {
+      assertEquals(i, merged.getTag(i));
+      assertEquals(Math.sqrt(i), merged.getData(i));
+    }
+  }
+
+  public void testSetArraysLargerThanCapacity() throws Exception {
+    int n = 100;
+    int[] tags = new int[n];
+    double[] data = new double[n];
+    for (int i = 0; i < n; i++) {
+      tags[i] = i;
+      data[i] = i / 2d;
+    }
+    IntegerDoubleArrayMessage batch = new IntegerDoubleArrayMessage();
+    batch.setTag(tags);
+    assertEquals(n, batch.size());
+    assertEquals(0d, batch.getData(n - 1));
+
+    // both arrays have grown, so the batch can be written and read back
+    DataOutputBuffer out = new DataOutputBuffer();
+    batch.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    IntegerDoubleArrayMessage received = new IntegerDoubleArrayMessage();
+    received.readFields(in);
+    assertEquals(n, received.size());
+    assertEquals(n - 1, received.getTag(n - 1));
+
+    batch = new IntegerDoubleArrayMessage();
+    batch.setData(data);
+    batch.setTag(tags);
+    assertEquals(n, batch.size());
+    for (int i = 0; i < n; i++) {
+      assertEquals(i, batch.getTag(i));
+      assertEquals(i / 2d, batch.getData(i));
+    }
+    batch.add(n, n / 2d);
+    assertEquals(n + 1, batch.getTag().length);
+    assertEquals(n + 1, batch.getData().length);
+  }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.IntWritable;
+import org.junit.Test;
+
+public class TestLockFreeQueue extends TestCase {
+
+  private static final int PRODUCERS = 8;
+  private static final int MESSAGES_PER_PRODUCER = 10000;
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    SynchronizedQueue<IntWritable> queue = LockFreeQueue
+        .synchronize(new MemoryQueue<IntWritable>());
+    produce(queue, PRODUCERS, MESSAGES_PER_PRODUCER);
+    assertEquals(PRODUCERS * MESSAGES_PER_PRODUCER, queue.size());
+
+    MessageQueue<IntWritable> messages = queue.getMessageQueue();
+    assertEquals(PRODUCERS * MESSAGES_PER_PRODUCER, messages.size());
+    // every producer sent the same numbers, so we can check the sum
+    long sum = 0;
+    IntWritable item = null;
+    while ((item = messages.poll()) != null) {
+      sum += item.get();
+    }
+    assertEquals((long) PRODUCERS * MESSAGES_PER_PRODUCER
+        * (MESSAGES_PER_PRODUCER - 1) / 2, sum);
+  }
+
+  @Test
+  public void testPollOrder() throws Exception {
+    SynchronizedQueue<IntWritable> queue = LockFreeQueue
+        .synchronize(new MemoryQueue<IntWritable>());
+    queue.add(new IntWritable(1));
+    queue.prepareRead();
+    queue.add(new IntWritable(2));
+    assertEquals(2, queue.size());
+    assertEquals(1, ((IntWritable) queue.poll()).get());
+    assertEquals(2, ((IntWritable) queue.poll()).get());
+    assertNull(queue.poll());
+    assertEquals(0, queue.size());
+  }
+
+  /**
+   * Lets the given number of threads add messages concurrently and waits until
+   * all of them are done.
+   */
+  private static void produce(final SynchronizedQueue<IntWritable> queue,
+      int producers, final int messages) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(producers);
+    for (int i = 0; i < producers; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < messages; j++) {
+              queue.add(new IntWritable(j));
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    start.countDown();
+    done.await();
+  }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.net.InetSocketAddress;
+import java.util.Map.Entry;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.BSPMessageBundle;
+import org.apache.hama.bsp.BSPPeer;
+import org.apache.hama.bsp.BSPPeerImpl;
+import org.apache.hama.bsp.Counters;
+import org.apache.hama.bsp.TaskAttemptID;
+import org.apache.hama.util.BSPNetUtils;
+
+public class TestNettyMessageManager extends TestCase {
+
+  public void testMessaging() throws Exception {
+    messagingInternal(new Configuration());
+  }
+
+  public void testCompressedMessaging() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(NettyMessageManagerImpl.COMPRESSION_LEVEL, 1);
+    messagingInternal(conf);
+  }
+
+  public void testReductionValue() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY,
+        TestHadoopMessageManager.TMP_OUTPUT_PATH);
+    conf.set(MessageManagerFactory.MESSAGE_MANAGER_CLASS,
+        "org.apache.hama.bsp.message.NettyMessageManagerImpl");
+    MessageManager<Writable> messageManager = MessageManagerFactory
+        .getMessageManager(conf);
+
+    InetSocketAddress peer = new InetSocketAddress(
+        BSPNetUtils.getCanonicalHostname(), BSPNetUtils.getFreePort()
+            + (TestHadoopMessageManager.increment++));
+    BSPPeer<?, ?, ?, ?, Writable> dummyPeer = new BSPPeerImpl<NullWritable, NullWritable, NullWritable, NullWritable, Writable>(
+        conf, FileSystem.get(conf), new Counters());
+    TaskAttemptID id = new TaskAttemptID("1", 1, 1, 1);
+    messageManager.init(id, dummyPeer, conf, peer);
+
+    // values of a reduction travel in bundles, but must not be delivered
+    BSPMessageBundle<Writable> bundle = new BSPMessageBundle<Writable>();
+    bundle.addMessage(new IntWritable(1337));
+    bundle.addMessage(new ReductionMessage(new IntWritable(42), false));
+    messageManager.transfer(peer, bundle);
+
+    messageManager.clearOutgoingQueues();
+
+    assertEquals(1, messageManager.getNumCurrentMessages());
+    assertEquals(1337, ((IntWritable) messageManager.getCurrentMessage()).get());
+    messageManager.close();
+  }
+
+  private static void messagingInternal(Configuration conf) throws Exception {
+    conf.setBoolean(MessageManager.LOOPBACK, false);
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY,
+        TestHadoopMessageManager.TMP_OUTPUT_PATH);
+    conf.set(MessageManagerFactory.MESSAGE_MANAGER_CLASS,
+        "org.apache.hama.bsp.message.NettyMessageManagerImpl");
+    MessageManager<IntWritable> messageManager = MessageManagerFactory
+        .getMessageManager(conf);
+
+    assertTrue(messageManager instanceof NettyMessageManagerImpl);
+
+    InetSocketAddress peer = new InetSocketAddress(
+        BSPNetUtils.getCanonicalHostname(), BSPNetUtils.getFreePort()
+            + (TestHadoopMessageManager.increment++));
+    BSPPeer<?, ?, ?, ?, IntWritable> dummyPeer = new BSPPeerImpl<NullWritable, NullWritable, NullWritable, NullWritable, IntWritable>(
+        conf, FileSystem.get(conf), new Counters());
+    TaskAttemptID id = new TaskAttemptID("1", 1, 1, 1);
+    messageManager.init(id, dummyPeer, conf, peer);
+    String peerName = peer.getHostName() + ":" + peer.getPort();
+
+    for (int i = 0; i < 1000; i++) {
+      messageManager.send(peerName, new IntWritable(i));
+    }
+    messageManager.finishSendPhase();
+
+    Entry<InetSocketAddress, MessageQueue<IntWritable>> entry = messageManager
+        .getMessageIterator().next();
+    assertEquals(peer, entry.getKey());
+
+    BSPMessageBundle<IntWritable> bundle = new BSPMessageBundle<IntWritable>();
+    for (IntWritable msg : entry.getValue()) {
+      bundle.addMessage(msg);
+    }
+    // the connection is kept, so the second transfer reuses it
+    messageManager.transfer(peer, bundle);
+    messageManager.transfer(peer, bundle);
+
+    messageManager.clearOutgoingQueues();
+
+    assertEquals(2000, messageManager.getNumCurrentMessages());
+    for (int i = 0; i < 2000; i++) {
+      assertEquals(i % 1000, messageManager.getCurrentMessage().get());
+    }
+    messageManager.close();
+  }
+
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.TaskAttemptID;
+import org.apache.hama.bsp.TaskID;
+import org.junit.Test;
+
+public class TestOffHeapQueue extends TestCase {
+
+  @Test
+  public void testOffHeapQueue() throws Exception {
+    OffHeapQueue<IntWritable> queue = getQueue(new Configuration());
+    for (int superstep = 0; superstep < 5; superstep++) {
+      for (int i = 0; i < 10; i++) {
+        queue.add(new IntWritable(i));
+      }
+      queue.addAll(Arrays.asList(new IntWritable(10), new IntWritable(11)));
+      assertEquals(12, queue.size());
+
+      for (int i = 0; i < 12; i++) {
+        assertEquals(i, queue.poll().get());
+      }
+      assertEquals(0, queue.size());
+      assertNull(queue.poll());
+    }
+    queue.close();
+  }
+
+  @Test
+  public void testSegmentOverflow() throws Exception {
+    Configuration conf = new Configuration();
+    // just enough for a few records per segment
+    conf.setInt(OffHeapQueue.SEGMENT_SIZE_KEY, 32);
+    OffHeapQueue<IntWritable> queue = getQueue(conf);
+    int n = 1000;
+    for (int i = 0; i < n; i++) {
+      queue.add(new IntWritable(i));
+    }
+    assertEquals(n, queue.size());
+
+    // iterating must not consume the queue
+    int expected = 0;
+    Iterator<IntWritable> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      assertEquals(expected++, iterator.next().get());
+    }
+    assertEquals(n, expected);
+    assertEquals(n, queue.size());
+
+    // interleave reads and writes across the segment boundaries
+    for (int i = 0; i < n / 2; i++) {
+      assertEquals(i, queue.poll().get());
+      queue.add(new IntWritable(n + i));
+    }
+    for (int i = n / 2; i < n + n / 2; i++) {
+      assertEquals(i, queue.poll().get());
+    }
+    assertEquals(0, queue.size());
+    queue.close();
+  }
+
+  @Test
+  public void testMixedMessageClasses() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(OffHeapQueue.SEGMENT_SIZE_KEY, 16);
+    OffHeapQueue<Writable> queue = getQueue(conf);
+    queue.add(new IntWritable(1));
+    // bigger than a whole segment
+    queue.add(new Text("this message is larger than a segment"));
+    queue.add(new IntWritable(2));
+
+    assertEquals(1, ((IntWritable) queue.poll()).get());
+    assertEquals("this message is larger than a segment", queue.poll()
+        .toString());
+    assertEquals(2, ((IntWritable) queue.poll()).get());
+    assertNull(queue.poll());
+    queue.close();
+  }
+
+  public <M extends Writable> OffHeapQueue<M> getQueue(Configuration conf) {
+    TaskAttemptID id = new TaskAttemptID(new TaskID("123", 1, 2), 0);
+    OffHeapQueue<M> queue = new OffHeapQueue<M>();
+    // normally this is injected via reflection
+    queue.setConf(conf);
+    queue.init(conf, id);
+    return queue;
+  }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.Combiner;
+
+public class TestReductionTree extends TestCase {
+
+  public void testReduce() throws Exception {
+    for (int fanout = 1; fanout <= 4; fanout++) {
+      for (int numPeers = 1; numPeers <= 20; numPeers++) {
+        reduceInternal(fanout, numPeers);
+      }
+    }
+  }
+
+  private static void reduceInternal(int fanout, final int numPeers)
+      throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(ReductionTree.FANOUT, fanout);
+    final ReductionTree[] trees = new ReductionTree[numPeers];
+    for (int i = 0; i < numPeers; i++) {
+      trees[i] = new ReductionTree(conf) {
+        @Override
+        protected void send(int peerIndex, Writable value, boolean reduced)
+            throws IOException {
+          trees[peerIndex].receive(value, reduced);
+        }
+      };
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(numPeers);
+    @SuppressWarnings("unchecked")
+    Future<IntWritable>[] results = new Future[numPeers];
+    // two rounds, so the values of the rounds must not get mixed up
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < numPeers; i++) {
+        final int peerIndex = i;
+        final int value = round * 100 + i;
+        results[i] = pool.submit(new Callable<IntWritable>() {
+          @Override
+          public IntWritable call() throws Exception {
+            return trees[peerIndex].reduce(new IntWritable(value),
+                new SumCombiner(), peerIndex, numPeers);
+          }
+        });
+      }
+      int expected = numPeers * round * 100 + numPeers * (numPeers - 1) / 2;
+      for (int i = 0; i < numPeers; i++) {
+        assertEquals(expected, results[i].get().get());
+      }
+    }
+    pool.shutdown();
+  }
+
+  private static class SumCombiner extends Combiner<IntWritable> {
+
+    @Override
+    public IntWritable combine(Iterable<IntWritable> messages) {
+      int sum = 0;
+      for (IntWritable value : messages) {
+        sum += value.get();
+      }
+      return new IntWritable(sum);
+    }
+
+  }
+
+}
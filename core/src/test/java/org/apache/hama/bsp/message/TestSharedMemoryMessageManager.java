@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.Map.Entry;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hama.bsp.BSPMessageBundle;
+import org.apache.hama.bsp.BSPPeer;
+import org.apache.hama.bsp.BSPPeerImpl;
+import org.apache.hama.bsp.Counters;
+import org.apache.hama.bsp.TaskAttemptID;
+import org.apache.hama.util.BSPNetUtils;
+
+public class TestSharedMemoryMessageManager extends TestCase {
+
+  public void testMessaging() throws Exception {
+    Configuration conf = getConf();
+    MessageManager<IntWritable> sender = getMessageManager(conf);
+    MessageManager<IntWritable> receiver = getMessageManager(conf);
+    InetSocketAddress receiverAddress = initPeer(receiver, conf);
+    initPeer(sender, conf);
+    String peerName = receiverAddress.getHostName() + ":"
+        + receiverAddress.getPort();
+
+    for (int i = 0; i < 1000; i++) {
+      sender.send(peerName, new IntWritable(i));
+    }
+    sender.finishSendPhase();
+
+    Entry<InetSocketAddress, MessageQueue<IntWritable>> entry = sender
+        .getMessageIterator().next();
+    assertEquals(receiverAddress, entry.getKey());
+
+    BSPMessageBundle<IntWritable> bundle = new BSPMessageBundle<IntWritable>();
+    for (IntWritable msg : entry.getValue()) {
+      bundle.addMessage(msg);
+    }
+    // the second transfer reuses the ring
+    sender.transfer(receiverAddress, bundle);
+    sender.transfer(receiverAddress, bundle);
+
+    receiver.clearOutgoingQueues();
+
+    assertEquals(2000, receiver.getNumCurrentMessages());
+    for (int i = 0; i < 2000; i++) {
+      assertEquals(i % 1000, receiver.getCurrentMessage().get());
+    }
+    sender.close();
+    receiver.close();
+  }
+
+  public void testRingWrapsAround() throws Exception {
+    Configuration conf = getConf();
+    // a few bundles fill the ring, so the sender has to wait for the receiver
+    conf.setInt(SharedMemoryMessageManagerImpl.RING_SIZE, 512);
+    MessageManager<IntWritable> sender = getMessageManager(conf);
+    MessageManager<IntWritable> receiver = getMessageManager(conf);
+    InetSocketAddress receiverAddress = initPeer(receiver, conf);
+    initPeer(sender, conf);
+
+    int n = 0;
+    for (int i = 0; i < 100; i++) {
+      BSPMessageBundle<IntWritable> bundle = new BSPMessageBundle<IntWritable>();
+      for (int j = 0; j < 10; j++) {
+        bundle.addMessage(new IntWritable(n++));
+      }
+      sender.transfer(receiverAddress, bundle);
+    }
+
+    receiver.clearOutgoingQueues();
+
+    assertEquals(n, receiver.getNumCurrentMessages());
+    for (int i = 0; i < n; i++) {
+      assertEquals(i, receiver.getCurrentMessage().get());
+    }
+    sender.close();
+    receiver.close();
+  }
+
+  public void testConcurrentRing() throws Exception {
+    File dir = new File(TestHadoopMessageManager.TMP_OUTPUT_PATH, "shm");
+    dir.mkdirs();
+    File file = new File(dir, "concurrent.ring");
+    file.delete();
+    // the records wrap around the small ring hundreds of times
+    final SharedMemoryRing writer = SharedMemoryRing.create(file, 256);
+    SharedMemoryRing reader = SharedMemoryRing.open(file);
+    final int records = 10000;
+
+    final Exception[] failure = new Exception[1];
+    Thread writerThread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < records; i++) {
+            byte[] record = getRecord(i);
+            writer.write(record, record.length);
+          }
+        } catch (Exception e) {
+          failure[0] = e;
+        }
+      }
+    };
+    writerThread.start();
+
+    int read = 0;
+    long deadline = System.currentTimeMillis() + 60000L;
+    while (read < records && System.currentTimeMillis() < deadline) {
+      byte[] record = reader.read();
+      if (record == null) {
+        Thread.yield();
+        continue;
+      }
+      byte[] expected = getRecord(read);
+      assertEquals(expected.length, record.length);
+      for (int i = 0; i < record.length; i++) {
+        assertEquals(expected[i], record[i]);
+      }
+      read++;
+    }
+    writerThread.join();
+    assertNull(failure[0]);
+    assertEquals(records, read);
+    assertNull(reader.read());
+    file.delete();
+  }
+
+  /**
+   * @return a record whose length and content depend on its number.
+   */
+  private static byte[] getRecord(int i) {
+    byte[] record = new byte[1 + i % 97];
+    for (int j = 0; j < record.length; j++) {
+      record[j] = (byte) (i + j);
+    }
+    return record;
+  }
+
+  private static Configuration getConf() {
+    Configuration conf = new Configuration();
+    conf.setBoolean(MessageManager.LOOPBACK, false);
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY,
+        TestHadoopMessageManager.TMP_OUTPUT_PATH);
+    File shmDir = new File(TestHadoopMessageManager.TMP_OUTPUT_PATH, "shm");
+    shmDir.mkdirs();
+    conf.set(SharedMemoryMessageManagerImpl.SHM_DIR, shmDir.getPath());
+    conf.set(MessageManagerFactory.MESSAGE_MANAGER_CLASS,
+        "org.apache.hama.bsp.message.SharedMemoryMessageManagerImpl");
+    return conf;
+  }
+
+  private static MessageManager<IntWritable> getMessageManager(
+      Configuration conf) {
+    MessageManager<IntWritable> messageManager = MessageManagerFactory
+        .getMessageManager(conf);
+    assertTrue(messageManager instanceof SharedMemoryMessageManagerImpl);
+    return messageManager;
+  }
+
+  private static InetSocketAddress initPeer(
+      MessageManager<IntWritable> messageManager, Configuration conf)
+      throws Exception {
+    InetSocketAddress peer = new InetSocketAddress(
+        BSPNetUtils.getCanonicalHostname(), BSPNetUtils.getFreePort()
+            + (TestHadoopMessageManager.increment++));
+    BSPPeer<?, ?, ?, ?, IntWritable> dummyPeer = new BSPPeerImpl<NullWritable, NullWritable, NullWritable, NullWritable, IntWritable>(
+        conf, FileSystem.get(conf), new Counters());
+    TaskAttemptID id = new TaskAttemptID("1", 1, 1, 1);
+    messageManager.init(id, dummyPeer, conf, peer);
+    return peer;
+  }
+
+}
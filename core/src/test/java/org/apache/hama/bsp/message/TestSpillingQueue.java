@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hama.bsp.TaskAttemptID;
+import org.apache.hama.bsp.TaskID;
+import org.junit.Test;
+
+public class TestSpillingQueue extends TestCase {
+
+  @Test
+  public void testInMemory() throws Exception {
+    SpillingQueue<IntWritable> queue = getQueue(getConf());
+    for (int superstep = 0; superstep < 5; superstep++) {
+      for (int i = 0; i < 100; i++) {
+        queue.add(new IntWritable(i));
+      }
+      assertEquals(100, queue.size());
+      assertEquals(0, queue.getNumSpilledRuns());
+      for (int i = 0; i < 100; i++) {
+        assertEquals(i, queue.poll().get());
+      }
+      assertNull(queue.poll());
+    }
+    queue.close();
+  }
+
+  @Test
+  public void testSpilling() throws Exception {
+    Configuration conf = getConf();
+    // every record needs 10 bytes, so we spill every 10 messages
+    conf.setInt(SpillingQueue.BUFFER_SIZE_KEY, 100);
+    SpillingQueue<IntWritable> queue = getQueue(conf);
+    int n = 1005;
+    for (int i = 0; i < n; i++) {
+      queue.add(new IntWritable(i));
+    }
+    assertEquals(n, queue.size());
+    assertEquals(100, queue.getNumSpilledRuns());
+
+    // interleave reads and writes, the queue must stay FIFO
+    for (int i = 0; i < n / 2; i++) {
+      assertEquals(i, queue.poll().get());
+      queue.add(new IntWritable(n + i));
+    }
+    int expected = n / 2;
+    for (IntWritable item : queue) {
+      assertEquals(expected++, item.get());
+    }
+    assertEquals(n + n / 2, expected);
+    assertEquals(0, queue.size());
+    assertEquals(0, queue.getNumSpilledRuns());
+    queue.close();
+  }
+
+  @Test
+  public void testSortedSpilling() throws Exception {
+    Configuration conf = getConf();
+    conf.setInt(SpillingQueue.BUFFER_SIZE_KEY, 256);
+    conf.setBoolean(SpillingQueue.SORTED_KEY, true);
+    SpillingQueue<IntWritable> queue = getQueue(conf);
+    Random rand = new Random(42);
+    int n = 2000;
+    for (int i = 0; i < n; i++) {
+      queue.add(new IntWritable(rand.nextInt(500) - 250));
+    }
+    assertTrue(queue.getNumSpilledRuns() > 1);
+
+    int last = Integer.MIN_VALUE;
+    for (int i = 0; i < n; i++) {
+      int current = queue.poll().get();
+      assertTrue(last <= current);
+      last = current;
+    }
+    assertNull(queue.poll());
+    assertEquals(0, queue.getNumSpilledRuns());
+    queue.close();
+  }
+
+  @Test
+  public void testMergePasses() throws Exception {
+    Configuration conf = getConf();
+    conf.setInt(SpillingQueue.BUFFER_SIZE_KEY, 100);
+    conf.setBoolean(SpillingQueue.SORTED_KEY, true);
+    conf.setInt(SpillingQueue.MERGE_FACTOR_KEY, 4);
+    SpillingQueue<IntWritable> queue = getQueue(conf);
+    Random rand = new Random(42);
+    int n = 1000;
+    for (int i = 0; i < n; i++) {
+      queue.add(new IntWritable(rand.nextInt()));
+    }
+    assertEquals(100, queue.getNumSpilledRuns());
+
+    int last = queue.poll().get();
+    // the runs have been merged until at most four are left
+    assertTrue(queue.getNumSpilledRuns() <= 4);
+    for (int i = 1; i < n; i++) {
+      int current = queue.poll().get();
+      assertTrue(last <= current);
+      last = current;
+    }
+    assertNull(queue.poll());
+    assertEquals(0, queue.getNumSpilledRuns());
+    queue.close();
+  }
+
+  @Test
+  public void testSortedMessageQueue() throws Exception {
+    Configuration conf = getConf();
+    conf.setInt(SpillingQueue.BUFFER_SIZE_KEY, 256);
+    SortedMessageQueue<IntWritable> queue = new SortedMessageQueue<IntWritable>();
+    queue.setConf(conf);
+    queue.init(conf, new TaskAttemptID(new TaskID("123", 1, 2), 0));
+    int n = 1000;
+    for (int i = n - 1; i >= 0; i--) {
+      queue.add(new IntWritable(i));
+    }
+    assertEquals(n, queue.size());
+    for (int i = 0; i < n; i++) {
+      assertEquals(i, queue.poll().get());
+    }
+    assertNull(queue.poll());
+    queue.close();
+  }
+
+  private static Configuration getConf() {
+    Configuration conf = new Configuration();
+    conf.set(DiskQueue.DISK_QUEUE_PATH_KEY,
+        TestAvroMessageManager.TMP_OUTPUT_PATH);
+    return conf;
+  }
+
+  public SpillingQueue<IntWritable> getQueue(Configuration conf) {
+    TaskAttemptID id = new TaskAttemptID(new TaskID("123", 1, 2), 0);
+    SpillingQueue<IntWritable> queue = new SpillingQueue<IntWritable>();
+    // normally this is injected via reflection
+    queue.setConf(conf);
+    queue.init(conf, id);
+    return queue;
+  }
+
+}
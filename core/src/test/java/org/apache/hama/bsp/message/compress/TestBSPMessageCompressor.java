@@ -60,4 +60,31 @@ public class TestBSPMessageCompressor extends TestCase {
 
   }
 
+  public void testDeflateCompression() {
+    Configuration configuration = new Configuration();
+    configuration.setClass(BSPMessageCompressorFactory.COMPRESSION_CODEC_CLASS,
+        DeflateCompressor.class, BSPMessageCompressor.class);
+    BSPMessageCompressor<IntegerMessage> compressor = new BSPMessageCompressorFactory<IntegerMessage>()
+        .getCompressor(configuration);
+    assertTrue(compressor instanceof DeflateCompressor);
+
+    int n = 1000;
+    BSPMessageBundle<IntegerMessage> bundle = new BSPMessageBundle<IntegerMessage>();
+    for (int i = 1; i <= n; i++) {
+      bundle.addMessage(new IntegerMessage("" + i, i));
+    }
+
+    BSPCompressedBundle compBundle = compressor.compressBundle(bundle);
+    assertTrue(compBundle.getData().length < bundle.getLength());
+    BSPMessageBundle<IntegerMessage> uncompBundle = compressor
+        .decompressBundle(compBundle);
+
+    assertEquals(n, uncompBundle.size());
+    int i = 1;
+    for (BSPMessage msg : uncompBundle) {
+      assertEquals(msg.getData(), i);
+      i++;
+    }
+  }
+
 }
@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.message.compress;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.BSPMessageBundle;
+
+public class TestCompressionPolicy extends TestCase {
+
+  private static final InetSocketAddress PEER = new InetSocketAddress(
+      "localhost", 40000);
+
+  public void testThreshold() throws Exception {
+    CompressionPolicy<Writable> policy = getPolicy(new Configuration());
+    BSPMessageBundle<Writable> bundle = getCompressibleBundle(10);
+    assertTrue(bundle.getLength() < CompressionPolicy.DEFAULT_THRESHOLD);
+    assertNull(policy.compress(PEER, bundle));
+
+    bundle = getCompressibleBundle(10000);
+    BSPCompressedBundle compBundle = policy.compress(PEER, bundle);
+    assertNotNull(compBundle);
+    assertTrue(compBundle.getData().length < bundle.getLength());
+  }
+
+  public void testIncompressibleBundlesAreSkipped() throws Exception {
+    CompressionPolicy<Writable> policy = getPolicy(new Configuration());
+    BSPMessageBundle<Writable> random = getRandomBundle(100000);
+    // the sample of the first bundle fails, the next one is skipped
+    assertNull(policy.compress(PEER, random));
+    assertNull(policy.compress(PEER, random));
+
+    // other peers and message classes have their own history
+    InetSocketAddress otherPeer = new InetSocketAddress("localhost", 40001);
+    BSPMessageBundle<Writable> zeros = new BSPMessageBundle<Writable>();
+    zeros.addMessage(new BytesWritable(new byte[100000]));
+    assertNotNull(policy.compress(otherPeer, zeros));
+    assertNotNull(policy.compress(PEER, getCompressibleBundle(10000)));
+  }
+
+  public void testBackoff() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(CompressionPolicy.THRESHOLD, 0);
+    CompressionPolicy<Writable> policy = getPolicy(conf);
+    BSPMessageBundle<Writable> random = getRandomBundle(100000);
+    BSPMessageBundle<Writable> compressible = new BSPMessageBundle<Writable>();
+    for (int i = 0; i < 100000; i++) {
+      compressible.addMessage(new BytesWritable(new byte[] { 0 }));
+    }
+    // fail twice, which pauses compression for 1 and then 2 bundles
+    assertNull(policy.compress(PEER, random));
+    assertNull(policy.compress(PEER, compressible));
+    assertNull(policy.compress(PEER, random));
+    assertNull(policy.compress(PEER, compressible));
+    assertNull(policy.compress(PEER, compressible));
+    // compression is tried again and succeeds
+    assertNotNull(policy.compress(PEER, compressible));
+    assertNotNull(policy.compress(PEER, compressible));
+  }
+
+  private static CompressionPolicy<Writable> getPolicy(Configuration conf) {
+    conf.setClass(BSPMessageCompressorFactory.COMPRESSION_CODEC_CLASS,
+        DeflateCompressor.class, BSPMessageCompressor.class);
+    BSPMessageCompressorFactory<Writable> factory = new BSPMessageCompressorFactory<Writable>();
+    return factory.getCompressionPolicy(conf, factory.getCompressor(conf));
+  }
+
+  private static BSPMessageBundle<Writable> getCompressibleBundle(int n) {
+    BSPMessageBundle<Writable> bundle = new BSPMessageBundle<Writable>();
+    for (int i = 0; i < n; i++) {
+      bundle.addMessage(new IntWritable(i % 10));
+    }
+    return bundle;
+  }
+
+  private static BSPMessageBundle<Writable> getRandomBundle(int bytes) {
+    byte[] data = new byte[bytes];
+    new Random(42).nextBytes(data);
+    BSPMessageBundle<Writable> bundle = new BSPMessageBundle<Writable>();
+    bundle.addMessage(new BytesWritable(data));
+    return bundle;
+  }
+
+}
@@ -0,0 +1,51 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.Text;
+
+public class TestBarrierPayload extends TestCase {
+
+  private final TestNettySyncClient.ConcatCombiner combiner = new TestNettySyncClient.ConcatCombiner();
+
+  public void testMissingPayloads() throws Exception {
+    // the second task did not call allReduce
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    payloads.add(BarrierPayload.toBytes(new Text("a")));
+    payloads.add(null);
+    payloads.add(BarrierPayload.toBytes(new Text("c")));
+
+    assertEquals("ac", BarrierPayload.reduce(new Text(), payloads, combiner)
+        .toString());
+    // a task without a value passes on the values of the others
+    assertEquals("ac", BarrierPayload.fromReducedOrPacked(new Text(),
+        BarrierPayload.toPacked(payloads), combiner).toString());
+    assertEquals("ac", BarrierPayload.fromReducedOrPacked(new Text(),
+        BarrierPayload.toReduced(new Text("ac")), combiner).toString());
+
+    List<byte[]> none = new ArrayList<byte[]>();
+    none.add(null);
+    assertNull(BarrierPayload.toPacked(none));
+  }
+
+}
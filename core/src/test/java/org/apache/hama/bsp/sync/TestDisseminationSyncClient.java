@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hama.bsp.BSPJobID;
+import org.apache.hama.bsp.Combiner;
+import org.apache.hama.bsp.TaskAttemptID;
+import org.apache.hama.util.BSPNetUtils;
+
+public class TestDisseminationSyncClient extends TestCase {
+
+  private static final int NUM_TASKS = 5;
+  private static final int NUM_SUPERSTEPS = 10;
+
+  public void testBarrier() throws Exception {
+    final Configuration conf = new Configuration();
+    conf.setInt("bsp.peers.num", NUM_TASKS);
+    conf.set(SyncServiceFactory.SYNC_CLIENT_CLASS,
+        DisseminationSyncClientImpl.class.getName());
+    conf.setClass(DisseminationSyncClientImpl.REGISTRY_CLASS,
+        MemoryRegistry.class, SyncClient.class);
+    final int basePort = BSPNetUtils.getFreePort(16000);
+
+    final StringBuilder indices = new StringBuilder();
+    for (int i = 0; i < NUM_TASKS; i++) {
+      indices.append(i);
+    }
+    final String expected = indices.toString();
+    final AtomicInteger[] entered = new AtomicInteger[NUM_SUPERSTEPS];
+    for (int i = 0; i < NUM_SUPERSTEPS; i++) {
+      entered[i] = new AtomicInteger();
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(NUM_TASKS);
+    List<Future<Object>> results = new ArrayList<Future<Object>>();
+    for (int i = 0; i < NUM_TASKS; i++) {
+      final int task = i;
+      results.add(pool.submit(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          TaskAttemptID taskId = new TaskAttemptID("1", 1, task, 1);
+          SyncClient client = SyncServiceFactory.getSyncClient(conf);
+          client.init(conf, taskId.getJobID(), taskId);
+          client.register(taskId.getJobID(), taskId, "localhost", basePort
+              + task);
+          for (int superstep = 0; superstep < NUM_SUPERSTEPS; superstep++) {
+            entered[superstep].incrementAndGet();
+            if (superstep % 2 == 0) {
+              client.enterBarrier(taskId.getJobID(), taskId, superstep);
+            } else {
+              // every other barrier gathers the task indices in task order
+              Text indices = client.enterBarrier(taskId.getJobID(), taskId,
+                  superstep, new Text(String.valueOf(task)),
+                  new TestNettySyncClient.ConcatCombiner());
+              assertEquals(expected, indices.toString());
+            }
+            // nobody passes the barrier before everybody has entered it
+            assertEquals(NUM_TASKS, entered[superstep].get());
+            client.leaveBarrier(taskId.getJobID(), taskId, superstep);
+          }
+          client.close();
+          return null;
+        }
+      }));
+    }
+    for (Future<Object> result : results) {
+      result.get();
+    }
+    pool.shutdown();
+  }
+
+  /**
+   * Keeps the registered peers in memory, the tasks of the test share it.
+   */
+  public static class MemoryRegistry implements SyncClient {
+
+    private static final TreeMap<Integer, String> peers = new TreeMap<Integer, String>();
+    private int numTasks;
+
+    @Override
+    public void init(Configuration conf, BSPJobID jobId, TaskAttemptID taskId)
+        throws Exception {
+      numTasks = conf.getInt("bsp.peers.num", 1);
+    }
+
+    @Override
+    public void register(BSPJobID jobId, TaskAttemptID taskId,
+        String hostAddress, long port) {
+      synchronized (peers) {
+        peers.put(taskId.getTaskID().getId(), hostAddress + ":" + port);
+        peers.notifyAll();
+      }
+    }
+
+    @Override
+    public String[] getAllPeerNames(TaskAttemptID taskId) {
+      synchronized (peers) {
+        while (peers.size() < numTasks) {
+          try {
+            peers.wait();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return peers.values().toArray(new String[peers.size()]);
+      }
+    }
+
+    @Override
+    public void enterBarrier(BSPJobID jobId, TaskAttemptID taskId,
+        long superstep) throws SyncException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <W extends Writable> W enterBarrier(BSPJobID jobId,
+        TaskAttemptID taskId, long superstep, W value, Combiner<W> combiner)
+        throws SyncException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void leaveBarrier(BSPJobID jobId, TaskAttemptID taskId,
+        long superstep) throws SyncException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deregisterFromBarrier(BSPJobID jobId, TaskAttemptID taskId,
+        String hostAddress, long port) {
+    }
+
+    @Override
+    public void stopServer() {
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+    }
+
+  }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.bsp.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hama.bsp.Combiner;
+import org.apache.hama.bsp.TaskAttemptID;
+
+public class TestNettySyncClient extends TestCase {
+
+  private static final int NUM_TASKS = 4;
+  private static final int NUM_SUPERSTEPS = 10;
+
+  public void testBarrier() throws Exception {
+    final Configuration conf = new Configuration();
+    conf.setInt("bsp.peers.num", NUM_TASKS);
+    conf.set(SyncServiceFactory.SYNC_SERVER_CLASS,
+        NettySyncServerImpl.class.getName());
+    final SyncServer server = SyncServiceFactory.getSyncServer(conf);
+    server.init(conf);
+    server.start();
+    // the server tells the tasks which client to use
+    assertTrue(SyncServiceFactory.getSyncClient(conf) instanceof NettySyncClientImpl);
+
+    // counts the tasks that have entered the barrier of the current superstep
+    final StringBuilder indices = new StringBuilder();
+    for (int i = 0; i < NUM_TASKS; i++) {
+      indices.append(i);
+    }
+    final String expected = indices.toString();
+    final AtomicInteger[] entered = new AtomicInteger[NUM_SUPERSTEPS];
+    for (int i = 0; i < NUM_SUPERSTEPS; i++) {
+      entered[i] = new AtomicInteger();
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(NUM_TASKS);
+    List<Future<String[]>> results = new ArrayList<Future<String[]>>();
+    for (int i = 0; i < NUM_TASKS; i++) {
+      final int task = i;
+      results.add(pool.submit(new Callable<String[]>() {
+        @Override
+        public String[] call() throws Exception {
+          TaskAttemptID taskId = new TaskAttemptID("1", 1, task, 1);
+          SyncClient client = SyncServiceFactory.getSyncClient(conf);
+          client.init(conf, taskId.getJobID(), taskId);
+          // register in reverse order, the names must be ordered anyway
+          Thread.sleep((NUM_TASKS - task) * 10);
+          client.register(taskId.getJobID(), taskId, "localhost", 1000 + task);
+          String[] peers = client.getAllPeerNames(taskId);
+          for (int superstep = 0; superstep < NUM_SUPERSTEPS; superstep++) {
+            entered[superstep].incrementAndGet();
+            if (superstep % 2 == 0) {
+              client.enterBarrier(taskId.getJobID(), taskId, superstep);
+            } else {
+              // every other barrier gathers the task indices in task order
+              Text indices = client.enterBarrier(taskId.getJobID(), taskId,
+                  superstep, new Text(String.valueOf(task)),
+                  new ConcatCombiner());
+              assertEquals(expected, indices.toString());
+            }
+            // nobody passes the barrier before everybody has entered it
+            assertEquals(NUM_TASKS, entered[superstep].get());
+            client.leaveBarrier(taskId.getJobID(), taskId, superstep);
+          }
+          client.close();
+          return peers;
+        }
+      }));
+    }
+    for (Future<String[]> result : results) {
+      String[] peers = result.get();
+      assertEquals(NUM_TASKS, peers.length);
+      for (int i = 0; i < NUM_TASKS; i++) {
+        assertEquals("localhost:" + (1000 + i), peers[i]);
+      }
+    }
+    pool.shutdown();
+    server.stopServer();
+  }
+
+  /**
+   * Concatenates texts, the result shows the order they were combined in.
+   */
+  static class ConcatCombiner extends Combiner<Text> {
+
+    @Override
+    public Text combine(Iterable<Text> messages) {
+      StringBuilder sb = new StringBuilder();
+      for (Text text : messages) {
+        sb.append(text.toString());
+      }
+      return new Text(sb.toString());
+    }
+
+  }
+
+}
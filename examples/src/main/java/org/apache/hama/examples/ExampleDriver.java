@@ -32,6 +32,8 @@ public class ExampleDriver {
           "Mindist search / Connected Components");
       pgd.addClass("cmb", CombineExample.class, "Combine");
       pgd.addClass("bench", RandBench.class, "Random Benchmark");
+      pgd.addClass("queuebench", QueueBench.class,
+          "Incoming message queue benchmark");
       pgd.addClass("pagerank", PageRank.class, "PageRank");
       pgd.addClass("inlnkcount", InlinkCount.class, "InlinkCount");
       pgd.driver(args);
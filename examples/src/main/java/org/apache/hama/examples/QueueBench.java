@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hama.examples;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hama.bsp.message.LockFreeQueue;
+import org.apache.hama.bsp.message.MemoryQueue;
+import org.apache.hama.bsp.message.SingleLockQueue;
+import org.apache.hama.bsp.message.SynchronizedQueue;
+
+/**
+ * Compares the throughput of concurrent producers adding to a
+ * {@link SingleLockQueue} and to a {@link LockFreeQueue}, like the RPC handlers
+ * of a peer do with its incoming messages.
+ */
+public class QueueBench {
+
+  /**
+   * Lets the given number of threads add messages concurrently and waits until
+   * all of them are done.
+   * 
+   * @return the time in milliseconds it took.
+   */
+  private static long produce(final SynchronizedQueue<IntWritable> queue,
+      int producers, final int messages) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(producers);
+    for (int i = 0; i < producers; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < messages; j++) {
+              queue.add(new IntWritable(j));
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    long startTime = System.currentTimeMillis();
+    start.countDown();
+    done.await();
+    return System.currentTimeMillis() - startTime;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int producers = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+    for (int round = 0; round < 5; round++) {
+      long singleLock = produce(
+          SingleLockQueue.synchronize(new MemoryQueue<IntWritable>()),
+          producers, messages);
+      long lockFree = produce(
+          LockFreeQueue.synchronize(new MemoryQueue<IntWritable>()),
+          producers, messages);
+      System.out.println("Round " + round + ": " + producers + " producers x "
+          + messages + " messages, SingleLockQueue " + singleLock
+          + "ms, LockFreeQueue " + lockFree + "ms");
+    }
+  }
+
+}
@@ -25,7 +25,11 @@ import org.apache.hadoop.io.Writable;
  * combines those values using a reduction operator, and the resulting value is
  * made available to all vertices in superstep S + 1. <br/>
  * The result of an aggregator from the last superstep can be picked up by the
- * vertex itself via {@link Vertex}#getLastAggregatedValue();
+ * vertex itself via {@link Vertex}#getLastAggregatedValue(); <br/>
+ * The values of the tasks are aggregated along a tree: a new aggregator
+ * observes the values of a few tasks with a null vertex, and its value is
+ * observed by the next one. So aggregating aggregated values must give the
+ * same value as aggregating all of them at once.
  */
 public interface Aggregator<M extends Writable, VERTEX extends Vertex<?, ?, ?>> {
 
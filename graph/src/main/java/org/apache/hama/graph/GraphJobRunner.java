@@ -78,14 +78,12 @@ public final class GraphJobRunner<V extends Writable, E extends Writable, M exte
   private String[] aggregatorClassNames;
   private Text[] aggregatorValueFlag;
   private Text[] aggregatorIncrementFlag;
-  // aggregator on the master side
-  private Aggregator<M, Vertex<V, E, M>>[] masterAggregator;
+  // reduces the message counts and aggregated values on the barrier
+  private final UpdateCombiner updateCombiner = new UpdateCombiner();
 
   private Map<V, Vertex<V, E, M>> vertices = new HashMap<V, Vertex<V, E, M>>();
 
-  private String masterTask;
   private boolean updated = true;
-  private int globalUpdateCounts = 0;
 
   private long numberVertices;
   // -1 is deactivated
@@ -103,8 +101,6 @@ public final class GraphJobRunner<V extends Writable, E extends Writable, M exte
       BSPPeer<Writable, Writable, Writable, Writable, GraphJobMessage> peer)
       throws IOException, SyncException, InterruptedException {
     this.conf = peer.getConfiguration();
-    // Choose one as a master to collect global updates
-    this.masterTask = peer.getPeerName(0);
 
     vertexIdClass = (Class<V>) conf.getClass(GraphJob.VERTEX_ID_CLASS_ATTR,
         Text.class, Writable.class);
@@ -145,9 +141,6 @@ public final class GraphJobRunner<V extends Writable, E extends Writable, M exte
       isAbstractAggregator = new boolean[aggregatorClassNames.length];
       aggregatorValueFlag = new Text[aggregatorClassNames.length];
       aggregatorIncrementFlag = new Text[aggregatorClassNames.length];
-      if (isMasterTask(peer)) {
-        masterAggregator = new Aggregator[aggregatorClassNames.length];
-      }
       for (int i = 0; i < aggregatorClassNames.length; i++) {
         aggregators[i] = getNewAggregator(aggregatorClassNames[i]);
         aggregatorValueFlag[i] = new Text(S_FLAG_AGGREGATOR_VALUE + ";" + i);
@@ -156,9 +149,6 @@ public final class GraphJobRunner<V extends Writable, E extends Writable, M exte
         if (aggregators[i] instanceof AbstractAggregator) {
           isAbstractAggregator[i] = true;
         }
-        if (isMasterTask(peer)) {
-          masterAggregator[i] = getNewAggregator(aggregatorClassNames[i]);
-        }
       }
     }
 
@@ -200,63 +190,29 @@ public final class GraphJobRunner<V extends Writable, E extends Writable, M exte
         -1);
 
     while (updated && !((maxIteration > 0) && iteration > maxIteration)) {
-      globalUpdateCounts = 0;
       peer.sync();
 
-      // Map <vertexID, messages>
-      final Map<V, LinkedList<M>> messages = parseMessages(peer);
+      // the message counts and aggregated values of all tasks were reduced on
+      // the barrier, so there is no master task and no additional sync
+      MapWritable updatedValues = peer.getReducedValue();
       // use iterations here, since repair can skew the number of
       // supersteps
-      if (isMasterTask(peer) && iteration > 1) {
-        MapWritable updatedCnt = new MapWritable();
+      if (iteration > 1) {
         // exit if there's no update made
-        if (globalUpdateCounts == 0) {
-          updatedCnt.put(FLAG_MESSAGE_COUNTS,
-              new IntWritable(Integer.MIN_VALUE));
-        } else {
-          if (aggregators != null) {
-            // work through the master aggregators
-            for (int i = 0; i < masterAggregator.length; i++) {
-              Writable lastAggregatedValue = masterAggregator[i].getValue();
-              if (isAbstractAggregator[i]) {
-                final AbstractAggregator<M, Vertex<V, E, M>> intern = ((AbstractAggregator<M, Vertex<V, E, M>>) masterAggregator[i]);
-                final Writable finalizeAggregation = intern
-                    .finalizeAggregation();
-                if (intern.finalizeAggregation() != null) {
-                  lastAggregatedValue = finalizeAggregation;
-                }
-                // this count is usually the times of active
-                // vertices in the graph
-                updatedCnt.put(aggregatorIncrementFlag[i], intern
-                    .getTimesAggregated());
-              }
-              updatedCnt.put(aggregatorValueFlag[i], lastAggregatedValue);
-            }
-          }
-        }
-        for (String peerName : peer.getAllPeerNames()) {
-          peer.send(peerName, new GraphJobMessage(updatedCnt));
-        }
-      }
-      // if we have an aggregator defined, we must make an additional sync
-      // to have the updated values available on all our peers.
-      if (aggregators != null && iteration > 1) {
-        peer.sync();
-
-        MapWritable updatedValues = peer.getCurrentMessage().getMap();
-        for (int i = 0; i < aggregators.length; i++) {
-          globalAggregatorResult[i] = updatedValues.get(aggregatorValueFlag[i]);
-          globalAggregatorIncrement[i] = (IntWritable) updatedValues
-              .get(aggregatorIncrementFlag[i]);
-        }
         IntWritable count = (IntWritable) updatedValues
             .get(FLAG_MESSAGE_COUNTS);
-        if (count != null && count.get() == Integer.MIN_VALUE) {
+        if (count.get() == 0) {
           updated = false;
           break;
         }
+        if (aggregators != null) {
+          finalizeAggregators(updatedValues);
+        }
       }
 
+      // Map <vertexID, messages>
+      final Map<V, LinkedList<M>> messages = parseMessages(peer);
+
       int messagesSize = messages.size();
 
       for (Vertex<V, E, M> vertex : vertices.values()) {
@@ -301,13 +257,16 @@ public final class GraphJobRunner<V extends Writable, E extends Writable, M exte
   private void runAggregators(
       BSPPeer<Writable, Writable, Writable, Writable, GraphJobMessage> peer,
       int messagesSize) throws IOException {
-    // send msgCounts to the master task
+    // reduce msgCounts with the next sync
     MapWritable updatedCnt = new MapWritable();
     updatedCnt.put(FLAG_MESSAGE_COUNTS, new IntWritable(messagesSize));
-    // also send aggregated values to the master
+    // also reduce the aggregated values
     if (aggregators != null) {
       for (int i = 0; i < this.aggregators.length; i++) {
-        updatedCnt.put(aggregatorValueFlag[i], aggregators[i].getValue());
+        Writable value = aggregators[i].getValue();
+        if (value != null) {
+          updatedCnt.put(aggregatorValueFlag[i], value);
+        }
         if (isAbstractAggregator[i]) {
           updatedCnt.put(aggregatorIncrementFlag[i],
               ((AbstractAggregator<M, Vertex<V, E, M>>) aggregators[i])
@@ -317,12 +276,39 @@ public final class GraphJobRunner<V extends Writable, E extends Writable, M exte
       for (int i = 0; i < aggregators.length; i++) {
         // now create new aggregators for the next iteration
         aggregators[i] = getNewAggregator(aggregatorClassNames[i]);
-        if (isMasterTask(peer)) {
-          masterAggregator[i] = getNewAggregator(aggregatorClassNames[i]);
+      }
+    }
+    peer.allReduce(updatedCnt, updateCombiner);
+  }
+
+  /**
+   * Aggregates the reduced value of all tasks with a new aggregator each and
+   * finalizes them, just like a master task would.
+   */
+  @SuppressWarnings("unchecked")
+  private void finalizeAggregators(MapWritable updatedValues) {
+    for (int i = 0; i < aggregators.length; i++) {
+      Aggregator<M, Vertex<V, E, M>> aggregator = getNewAggregator(aggregatorClassNames[i]);
+      Writable value = updatedValues.get(aggregatorValueFlag[i]);
+      if (value != null) {
+        aggregator.aggregate(null, (M) value);
+      }
+      Writable lastAggregatedValue = aggregator.getValue();
+      if (isAbstractAggregator[i]) {
+        final AbstractAggregator<M, Vertex<V, E, M>> intern = ((AbstractAggregator<M, Vertex<V, E, M>>) aggregator);
+        // this count is usually the times of active
+        // vertices in the graph
+        IntWritable timesAggregated = (IntWritable) updatedValues
+            .get(aggregatorIncrementFlag[i]);
+        intern.addTimesAggregated(timesAggregated.get());
+        final Writable finalizeAggregation = intern.finalizeAggregation();
+        if (finalizeAggregation != null) {
+          lastAggregatedValue = finalizeAggregation;
         }
+        globalAggregatorIncrement[i] = timesAggregated;
       }
+      globalAggregatorResult[i] = lastAggregatedValue;
     }
-    peer.send(masterTask, new GraphJobMessage(updatedCnt));
   }
 
   @SuppressWarnings("unchecked")
@@ -343,28 +329,6 @@ public final class GraphJobRunner<V extends Writable, E extends Writable, M exte
           msgMap.put(vertexID, msgs);
         }
         msgs.add(value);
-      } else if (msg.isMapMessage()) {
-        for (Entry<Writable, Writable> e : msg.getMap().entrySet()) {
-          Text vertexID = (Text) e.getKey();
-          if (FLAG_MESSAGE_COUNTS.equals(vertexID)) {
-            if (((IntWritable) e.getValue()).get() == Integer.MIN_VALUE) {
-              updated = false;
-            } else {
-              globalUpdateCounts += ((IntWritable) e.getValue()).get();
-            }
-          } else if (aggregators != null
-              && vertexID.toString().startsWith(S_FLAG_AGGREGATOR_VALUE)) {
-            int index = Integer.parseInt(vertexID.toString().split(";")[1]);
-            masterAggregator[index].aggregate(null, (M) e.getValue());
-          } else if (aggregators != null
-              && vertexID.toString().startsWith(S_FLAG_AGGREGATOR_INCREMENT)) {
-            int index = Integer.parseInt(vertexID.toString().split(";")[1]);
-            if (isAbstractAggregator[index]) {
-              ((AbstractAggregator<M, Vertex<V, E, M>>) masterAggregator[index])
-                  .addTimesAggregated(((IntWritable) e.getValue()).get());
-            }
-          }
-        }
       } else {
         throw new UnsupportedOperationException("Unknown message type? " + msg);
       }
@@ -413,7 +377,7 @@ public final class GraphJobRunner<V extends Writable, E extends Writable, M exte
               .getNumPeers());
           edge.destinationPeerName = peer.getPeerName(edgePartition);
         }
-        peer.send(peer.getPeerName(partition), new GraphJobMessage(vertex));
+        peer.send(partition, new GraphJobMessage(vertex));
       } else {
         vertex.setup(conf);
         vertices.put(vertex.getVertexID(), vertex);
@@ -514,11 +478,6 @@ public final class GraphJobRunner<V extends Writable, E extends Writable, M exte
         + " could not be found or instantiated!");
   }
 
-  private boolean isMasterTask(
-      BSPPeer<Writable, Writable, Writable, Writable, GraphJobMessage> peer) {
-    return peer.getPeerName().equals(masterTask);
-  }
-
   public final long getNumberVertices() {
     return numberVertices;
   }
@@ -543,4 +502,56 @@ public final class GraphJobRunner<V extends Writable, E extends Writable, M exte
     return globalAggregatorIncrement[index];
   }
 
+  /**
+   * Sums the message counts and the aggregation counts of the tasks and
+   * aggregates their values with a new aggregator each, so an update has the
+   * same size no matter how many tasks it covers. This expects that
+   * aggregating values that are themselves aggregated gives the same value as
+   * aggregating all of them at once, which is true for sums, minimums and
+   * maximums.
+   */
+  private final class UpdateCombiner extends Combiner<MapWritable> {
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public MapWritable combine(Iterable<MapWritable> updates) {
+      int messageCount = 0;
+      int numAggregators = aggregators == null ? 0 : aggregators.length;
+      Aggregator<M, Vertex<V, E, M>>[] combiners = new Aggregator[numAggregators];
+      boolean[] hasValue = new boolean[numAggregators];
+      int[] timesAggregated = new int[numAggregators];
+      for (int i = 0; i < numAggregators; i++) {
+        combiners[i] = getNewAggregator(aggregatorClassNames[i]);
+      }
+      for (MapWritable update : updates) {
+        messageCount += ((IntWritable) update.get(FLAG_MESSAGE_COUNTS)).get();
+        for (int i = 0; i < numAggregators; i++) {
+          Writable value = update.get(aggregatorValueFlag[i]);
+          if (value != null) {
+            combiners[i].aggregate(null, (M) value);
+            hasValue[i] = true;
+          }
+          if (isAbstractAggregator[i]) {
+            timesAggregated[i] += ((IntWritable) update
+                .get(aggregatorIncrementFlag[i])).get();
+          }
+        }
+      }
+      MapWritable combined = new MapWritable();
+      combined.put(FLAG_MESSAGE_COUNTS, new IntWritable(messageCount));
+      for (int i = 0; i < numAggregators; i++) {
+        Writable value = hasValue[i] ? combiners[i].getValue() : null;
+        if (value != null) {
+          combined.put(aggregatorValueFlag[i], value);
+        }
+        if (isAbstractAggregator[i]) {
+          combined.put(aggregatorIncrementFlag[i], new IntWritable(
+              timesAggregated[i]));
+        }
+      }
+      return combined;
+    }
+
+  }
+
 }
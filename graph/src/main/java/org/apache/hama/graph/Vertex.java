@@ -71,8 +71,7 @@ public abstract class Vertex<V extends Writable, E extends Writable, M extends W
       throws IOException {
     int partition = getPartitioner().getPartition(destinationVertexID, msg,
         peer.getNumPeers());
-    String destPeer = peer.getAllPeerNames()[partition];
-    peer.send(destPeer, new GraphJobMessage(destinationVertexID, msg));
+    peer.send(partition, new GraphJobMessage(destinationVertexID, msg));
   }
 
   @Override